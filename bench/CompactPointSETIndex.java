@@ -0,0 +1,41 @@
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+import kdbench.SpatialIndex;
+
+// benchmark adapter for a PointSET that is compacted before the first
+// query after an insert
+public class CompactPointSETIndex implements SpatialIndex {
+
+    private final PointSET set = new PointSET();
+    private boolean isCompact = true;
+
+    @Override
+    public void insert(Point2D p) {
+        set.insert(p);
+        isCompact = false;
+    }
+
+    @Override
+    public boolean contains(Point2D p) {
+        return compact().contains(p);
+    }
+
+    @Override
+    public Iterable<Point2D> range(RectHV rect) {
+        return compact().range(rect);
+    }
+
+    @Override
+    public Point2D nearest(Point2D p) {
+        return compact().nearest(p);
+    }
+
+    private PointSET compact() {
+        if (!isCompact) {
+            set.compact();
+            isCompact = true;
+        }
+        return set;
+    }
+}
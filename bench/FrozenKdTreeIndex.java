@@ -0,0 +1,38 @@
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+import kdbench.SpatialIndex;
+
+// benchmark adapter for a KdTree that is frozen before the first query
+// after an insert
+public class FrozenKdTreeIndex implements SpatialIndex {
+
+    private final KdTree set = new KdTree();
+
+    @Override
+    public void insert(Point2D p) {
+        set.insert(p);
+    }
+
+    @Override
+    public boolean contains(Point2D p) {
+        return frozen().contains(p);
+    }
+
+    @Override
+    public Iterable<Point2D> range(RectHV rect) {
+        return frozen().range(rect);
+    }
+
+    @Override
+    public Point2D nearest(Point2D p) {
+        return frozen().nearest(p);
+    }
+
+    private KdTree frozen() {
+        if (!set.isFrozen()) {
+            set.freeze();
+        }
+        return set;
+    }
+}
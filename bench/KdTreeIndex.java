@@ -0,0 +1,30 @@
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+import kdbench.SpatialIndex;
+
+// benchmark adapter for KdTree
+public class KdTreeIndex implements SpatialIndex {
+
+    private final KdTree set = new KdTree();
+
+    @Override
+    public void insert(Point2D p) {
+        set.insert(p);
+    }
+
+    @Override
+    public boolean contains(Point2D p) {
+        return set.contains(p);
+    }
+
+    @Override
+    public Iterable<Point2D> range(RectHV rect) {
+        return set.range(rect);
+    }
+
+    @Override
+    public Point2D nearest(Point2D p) {
+        return set.nearest(p);
+    }
+}
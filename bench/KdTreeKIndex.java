@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+import kdbench.SpatialIndex;
+
+// benchmark adapter for KdTreeK with two dimensions; the conversions to
+// and from double[] are part of what is measured
+public class KdTreeKIndex implements SpatialIndex {
+
+    private final KdTreeK set = new KdTreeK(2);
+
+    @Override
+    public void insert(Point2D p) {
+        set.insert(new double[] { p.x(), p.y() });
+    }
+
+    @Override
+    public boolean contains(Point2D p) {
+        return set.contains(new double[] { p.x(), p.y() });
+    }
+
+    @Override
+    public Iterable<Point2D> range(RectHV rect) {
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        for (double[] p : set.range(new double[] { rect.xmin(), rect.ymin() },
+                new double[] { rect.xmax(), rect.ymax() })) {
+            points.add(new Point2D(p[0], p[1]));
+        }
+        return points;
+    }
+
+    @Override
+    public Point2D nearest(Point2D p) {
+        double[] q = set.nearest(new double[] { p.x(), p.y() });
+        return q == null ? null : new Point2D(q[0], q[1]);
+    }
+}
@@ -0,0 +1,97 @@
+/******************************************************************************
+ *  Compilation:  mvn -B package
+ *  Execution:    (used by the benchmarks, not run on its own)
+ *  Dependencies: KdTreeGenerator.java
+ *
+ *  The points, query points and query rectangles shared by the JMH
+ *  benchmarks. Each trial draws size points from one of the
+ *  KdTreeGenerator distributions with a fixed seed, so runs on different
+ *  machines see the same data.
+ *
+ *  JMH does not accept benchmarks in the default package, and a named
+ *  package cannot import the default-package classes in src/, so they
+ *  are reached by name through reflection outside the measured code.
+ *
+ ******************************************************************************/
+
+package kdbench;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+@State(Scope.Benchmark)
+public class BenchmarkData {
+
+    // number of prepared queries of each kind; a power of two
+    static final int QUERIES = 1 << 10;
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    public int size;
+
+    @Param({ "uniform", "clustered", "sorted", "circle" })
+    public String distribution;
+
+    Point2D[] points;
+
+    // half of them are in the set, half are random
+    Point2D[] queries;
+
+    // query windows with sides of 0.01, 0.05 and 0.2
+    RectHV[] smallRects;
+    RectHV[] mediumRects;
+    RectHV[] largeRects;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        try {
+            Method generate = Class.forName("KdTreeGenerator").getMethod(
+                    "points", String.class, int.class, Random.class);
+            points = (Point2D[]) generate.invoke(null, distribution, size, rnd);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        queries = new Point2D[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            if (i % 2 == 0) {
+                queries[i] = points[rnd.nextInt(size)];
+            } else {
+                queries[i] = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            }
+        }
+
+        smallRects = rects(rnd, 0.01);
+        mediumRects = rects(rnd, 0.05);
+        largeRects = rects(rnd, 0.2);
+    }
+
+    private static RectHV[] rects(Random rnd, double side) {
+        RectHV[] rects = new RectHV[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            double x = rnd.nextDouble() * (1 - side);
+            double y = rnd.nextDouble() * (1 - side);
+            rects[i] = new RectHV(x, y, x + side, y + side);
+        }
+        return rects;
+    }
+
+    // cycles each benchmark thread through the prepared queries
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int i;
+
+        int next() {
+            i = (i + 1) & (QUERIES - 1);
+            return i;
+        }
+    }
+}
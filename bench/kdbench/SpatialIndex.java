@@ -0,0 +1,23 @@
+package kdbench;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+/**
+ * The operations under benchmark, implemented by small adapters in the
+ * default package (for example KdTreeIndex for KdTree).
+ */
+public interface SpatialIndex {
+
+    // add the point to the set (if it is not already in the set)
+    void insert(Point2D p);
+
+    // does the set contain point p?
+    boolean contains(Point2D p);
+
+    // all points that are inside the rectangle
+    Iterable<Point2D> range(RectHV rect);
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    Point2D nearest(Point2D p);
+}
@@ -0,0 +1,135 @@
+/******************************************************************************
+ *  Compilation:  mvn -B package
+ *  Execution:    java -jar target/benchmarks.jar -prof gc
+ *  Dependencies: SpatialIndex.java BenchmarkData.java
+ *
+ *  JMH benchmarks for KdTree (as built, and frozen by freeze()), KdTreeK
+ *  (in two dimensions), BucketKdTree and PointSET (as built, and packed
+ *  by compact()) over every size and distribution in BenchmarkData.
+ *  Each benchmark reports throughput and sampled latency (with
+ *  percentiles); -prof gc adds the allocation rate. Narrow a run with,
+ *  for example,
+ *
+ *  % java -jar target/benchmarks.jar -p impl=KdTree -p size=100000 nearest
+ *
+ *  bucketSize only matters to BucketKdTree; compare bucket sizes with
+ *
+ *  % java -jar target/benchmarks.jar -p impl=BucketKdTree
+ *        -p bucketSize=8,16,32,64,128
+ *
+ *  and, on Linux with perf installed, cache misses per query with
+ *
+ *  % java -jar target/benchmarks.jar -p impl=KdTree,FrozenKdTree
+ *        -prof perfnorm contains nearest
+ *
+ *  insert measures building the whole set one insert() at a time, in
+ *  the order of the generated points; the query benchmarks run against
+ *  a set built the same way.
+ *
+ ******************************************************************************/
+
+package kdbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.princeton.cs.algs4.Point2D;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xss512m" })
+public class SpatialIndexBenchmark {
+
+    // the class under test; its adapter is named impl + "Index"
+    @Param({ "KdTree", "FrozenKdTree", "KdTreeK", "BucketKdTree",
+            "PointSET", "CompactPointSET" })
+    public String impl;
+
+    // points per leaf, for adapters whose constructor takes one
+    @Param({ "32" })
+    public int bucketSize;
+
+    private SpatialIndex index;
+
+    @Setup
+    public void setup(BenchmarkData data) {
+        index = build(data.points);
+    }
+
+    @Benchmark
+    public SpatialIndex insert(BenchmarkData data) {
+        return build(data.points);
+    }
+
+    @Benchmark
+    public boolean contains(BenchmarkData data, BenchmarkData.Cursor cursor) {
+        return index.contains(data.queries[cursor.next()]);
+    }
+
+    @Benchmark
+    public void rangeSmall(BenchmarkData data, BenchmarkData.Cursor cursor,
+            Blackhole bh) {
+        for (Point2D p : index.range(data.smallRects[cursor.next()])) {
+            bh.consume(p);
+        }
+    }
+
+    @Benchmark
+    public void rangeMedium(BenchmarkData data, BenchmarkData.Cursor cursor,
+            Blackhole bh) {
+        for (Point2D p : index.range(data.mediumRects[cursor.next()])) {
+            bh.consume(p);
+        }
+    }
+
+    @Benchmark
+    public void rangeLarge(BenchmarkData data, BenchmarkData.Cursor cursor,
+            Blackhole bh) {
+        for (Point2D p : index.range(data.largeRects[cursor.next()])) {
+            bh.consume(p);
+        }
+    }
+
+    @Benchmark
+    public Point2D nearest(BenchmarkData data, BenchmarkData.Cursor cursor) {
+        return index.nearest(data.queries[cursor.next()]);
+    }
+
+    private SpatialIndex build(Point2D[] points) {
+        SpatialIndex index = newIndex();
+        for (Point2D p : points) {
+            index.insert(p);
+        }
+        return index;
+    }
+
+    private SpatialIndex newIndex() {
+        try {
+            Class<?> adapter = Class.forName(impl + "Index");
+            try {
+                return (SpatialIndex) adapter.getDeclaredConstructor(int.class)
+                        .newInstance(bucketSize);
+            } catch (NoSuchMethodException e) {
+                return (SpatialIndex) adapter.getDeclaredConstructor()
+                        .newInstance();
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
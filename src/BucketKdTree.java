@@ -0,0 +1,394 @@
+/******************************************************************************
+ *  Compilation:  javac BucketKdTree.java
+ *  Execution:    java -ea BucketKdTree
+ *  Dependencies: KdTreeChecker.java
+ *
+ *  A 2d-tree that keeps its points in the leaves, up to B of them per
+ *  leaf in two primitive arrays, instead of one point per node. Internal
+ *  nodes only hold a splitting line. Queries walk far fewer nodes and
+ *  then scan a leaf linearly, which the processor can prefetch and the
+ *  compiler can unroll; the tree is about log(n / B) deep.
+ *
+ *  A leaf that overflows is split at the median of its points along the
+ *  axis of the level (or the other axis if all its points share that
+ *  coordinate). Points with a key below the line go to the left/bottom
+ *  child, the others to the right/top child, as in KdTree.
+ *
+ *  The JMH benchmarks take the bucket size as a parameter, for example
+ *
+ *  % java -jar target/benchmarks.jar -p impl=BucketKdTree
+ *        -p bucketSize=8,16,32,64,128
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+public class BucketKdTree {
+
+    // the bucket size used by the default constructor
+    public static final int DEFAULT_BUCKET_SIZE = 32;
+
+    private final int bucketSize;
+    private Node root;
+    private int size;
+
+    // construct an empty set of points with the default bucket size
+    public BucketKdTree() {
+        this(DEFAULT_BUCKET_SIZE);
+    }
+
+    // construct an empty set of points with up to bucketSize per leaf
+    public BucketKdTree(int bucketSize) {
+        if (bucketSize < 2) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        this.bucketSize = bucketSize;
+        root = new Node(bucketSize);
+        size = 0;
+    }
+
+    // is the set empty?
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of points in the set
+    public int size() {
+        return size;
+    }
+
+    // add the point to the set (if it is not already in the set)
+    public void insert(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        // -0.0 and 0.0 are the same coordinate
+        double x = p.x() == 0d ? 0d : p.x();
+        double y = p.y() == 0d ? 0d : p.y();
+        Node node = root;
+        while (node.xs == null) {
+            double key = node.isVertDiv ? x : y;
+            node = key < node.split ? node.lb : node.rt;
+        }
+
+        if (indexOf(node, x, y) >= 0) {
+            return;
+        }
+        if (node.n == bucketSize) {
+            split(node);
+            node = (node.isVertDiv ? x : y) < node.split ? node.lb : node.rt;
+        }
+        node.xs[node.n] = x;
+        node.ys[node.n] = y;
+        node.n++;
+        size++;
+    }
+
+    // does the set contain point p?
+    public boolean contains(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+        Node node = root;
+        while (node.xs == null) {
+            double key = node.isVertDiv ? x : y;
+            node = key < node.split ? node.lb : node.rt;
+        }
+        return indexOf(node, x, y) >= 0;
+    }
+
+    // all points that are inside the rectangle
+    public Iterable<Point2D> range(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        range(root, rect.xmin(), rect.ymin(), rect.xmax(), rect.ymax(),
+                points);
+        return points;
+    }
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    public Point2D nearest(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        double inf = Double.POSITIVE_INFINITY;
+        Nearest best = new Nearest();
+        nearest(root, p.x(), p.y(), -inf, -inf, inf, inf, best);
+        return new Point2D(best.x, best.y);
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) {
+        System.out.println("Running tests...");
+        testContains();
+        testAgainstKdTree();
+    }
+
+    private static void testContains() {
+        System.out.println("testContains");
+        BucketKdTree tree = new BucketKdTree(2);
+
+        tree.insert(new Point2D(0.5d, 0.5d));
+        tree.insert(new Point2D(0.25d, 0.5d));
+        tree.insert(new Point2D(0.75d, 0.5d));
+        tree.insert(new Point2D(0.75d, 0.5d));
+        assert tree.size() == 3;
+
+        // a column of points with the same x-coordinate forces splits on y
+        for (int i = 0; i < 10; i++) {
+            tree.insert(new Point2D(0.5d, i / 10d));
+        }
+        assert tree.size() == 12;
+
+        assert tree.contains(new Point2D(0.5d, 0.5d));
+        assert tree.contains(new Point2D(0.25d, 0.5d));
+        assert tree.contains(new Point2D(0.75d, 0.5d));
+        assert tree.contains(new Point2D(0.5d, 0.9d));
+        assert !tree.contains(new Point2D(0.0d, 0.0d));
+        assert !tree.contains(new Point2D(0.3d, 0.3d));
+        assert new BucketKdTree().nearest(new Point2D(0d, 0d)) == null;
+    }
+
+    private static void testAgainstKdTree() {
+        System.out.println("testAgainstKdTree");
+
+        Random rnd = new Random(19);
+        Point2D[] points = KdTreeChecker.points(rnd, 20000);
+        for (int bucketSize = 2; bucketSize <= 128; bucketSize *= 4) {
+            BucketKdTree tree = new BucketKdTree(bucketSize);
+            for (Point2D p : points) {
+                tree.insert(p);
+            }
+            KdTreeChecker.check(points, rnd, checker(tree));
+        }
+    }
+
+    // adapts a tree to the differential test against KdTree
+    private static KdTreeChecker checker(final BucketKdTree tree) {
+        return new KdTreeChecker() {
+            @Override
+            int size() {
+                return tree.size();
+            }
+
+            @Override
+            boolean contains(Point2D p) {
+                return tree.contains(p);
+            }
+
+            @Override
+            Point2D nearest(Point2D p) {
+                return tree.nearest(p);
+            }
+
+            @Override
+            Iterable<Point2D> range(RectHV rect) {
+                return tree.range(rect);
+            }
+        };
+    }
+
+    // index of (x, y) in the leaf; -1 if it is not there
+    private static int indexOf(Node leaf, double x, double y) {
+        double[] xs = leaf.xs;
+        double[] ys = leaf.ys;
+        for (int i = 0; i < leaf.n; i++) {
+            if (xs[i] == x && ys[i] == y) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // turns the full leaf into an internal node with two leaves
+    private void split(Node leaf) {
+        double[] xs = leaf.xs;
+        double[] ys = leaf.ys;
+        int n = leaf.n;
+
+        boolean isVertDiv = leaf.isVertDiv;
+        double split = split(isVertDiv ? xs : ys, n);
+        if (Double.isNaN(split)) {
+            // all points share the coordinate, so split the other way;
+            // they are unique, so they cannot share both
+            isVertDiv = !isVertDiv;
+            split = split(isVertDiv ? xs : ys, n);
+        }
+
+        Node lb = new Node(bucketSize);
+        Node rt = new Node(bucketSize);
+        lb.isVertDiv = !isVertDiv;
+        rt.isVertDiv = !isVertDiv;
+        double[] keys = isVertDiv ? xs : ys;
+        for (int i = 0; i < n; i++) {
+            Node child = keys[i] < split ? lb : rt;
+            child.xs[child.n] = xs[i];
+            child.ys[child.n] = ys[i];
+            child.n++;
+        }
+
+        leaf.isVertDiv = isVertDiv;
+        leaf.split = split;
+        leaf.lb = lb;
+        leaf.rt = rt;
+        leaf.xs = null;
+        leaf.ys = null;
+        leaf.n = 0;
+    }
+
+    // a splitting value for the first n keys that leaves some of them on
+    // each side, as close to the median as possible; NaN if all are equal
+    private static double split(double[] keys, int n) {
+        double[] sorted = Arrays.copyOf(keys, n);
+        Arrays.sort(sorted);
+        if (sorted[0] == sorted[n - 1]) {
+            return Double.NaN;
+        }
+
+        // the median goes right; if nothing is left of it, move up to the
+        // first larger key
+        int mid = n / 2;
+        if (sorted[mid] == sorted[0]) {
+            while (sorted[mid] == sorted[0]) {
+                mid++;
+            }
+        }
+        return sorted[mid];
+    }
+
+    // updates best with the closest point to (qx, qy) in the subtree,
+    // which lies within [xmin, xmax] x [ymin, ymax]
+    private static void nearest(Node node, double qx, double qy,
+            double xmin, double ymin, double xmax, double ymax,
+            Nearest best) {
+        // prune subtrees whose rectangle is farther away than the best so far
+        double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+        double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+        if (dx * dx + dy * dy > best.dist) {
+            return;
+        }
+
+        if (node.xs != null) {
+            // a plain scan over the bucket
+            double[] xs = node.xs;
+            double[] ys = node.ys;
+            int bestIndex = -1;
+            double distBest = best.dist;
+            for (int i = 0; i < node.n; i++) {
+                double ddx = xs[i] - qx;
+                double ddy = ys[i] - qy;
+                double dist = ddx * ddx + ddy * ddy;
+                if (dist < distBest) {
+                    distBest = dist;
+                    bestIndex = i;
+                }
+            }
+            if (bestIndex >= 0) {
+                best.x = xs[bestIndex];
+                best.y = ys[bestIndex];
+                best.dist = distBest;
+            }
+            return;
+        }
+
+        // go towards the query point first
+        double split = node.split;
+        if (node.isVertDiv) {
+            if (qx < split) {
+                nearest(node.lb, qx, qy, xmin, ymin, split, ymax, best);
+                nearest(node.rt, qx, qy, split, ymin, xmax, ymax, best);
+            } else {
+                nearest(node.rt, qx, qy, split, ymin, xmax, ymax, best);
+                nearest(node.lb, qx, qy, xmin, ymin, split, ymax, best);
+            }
+        } else {
+            if (qy < split) {
+                nearest(node.lb, qx, qy, xmin, ymin, xmax, split, best);
+                nearest(node.rt, qx, qy, xmin, split, xmax, ymax, best);
+            } else {
+                nearest(node.rt, qx, qy, xmin, split, xmax, ymax, best);
+                nearest(node.lb, qx, qy, xmin, ymin, xmax, split, best);
+            }
+        }
+    }
+
+    private static void range(Node node, double xmin, double ymin,
+            double xmax, double ymax, ArrayList<Point2D> points) {
+        if (node.xs != null) {
+            double[] xs = node.xs;
+            double[] ys = node.ys;
+            for (int i = 0; i < node.n; i++) {
+                double x = xs[i];
+                double y = ys[i];
+                if (x >= xmin && x <= xmax && y >= ymin && y <= ymax) {
+                    points.add(new Point2D(x, y));
+                }
+            }
+            return;
+        }
+
+        // the left/bottom subtree only holds keys below the split,
+        // the right/top subtree keys at or above it
+        double min = node.isVertDiv ? xmin : ymin;
+        double max = node.isVertDiv ? xmax : ymax;
+        if (min < node.split) {
+            range(node.lb, xmin, ymin, xmax, ymax, points);
+        }
+        if (max >= node.split) {
+            range(node.rt, xmin, ymin, xmax, ymax, points);
+        }
+    }
+
+    // a leaf holds its points in xs, ys; an internal node has xs == null
+    // and divides the plane along split
+    private static class Node {
+        // the points of a leaf, in xs[0, n) and ys[0, n)
+        private double[] xs;
+        private double[] ys;
+        private int n;
+
+        // the axis this node divides (or, for a leaf, will divide)
+        private boolean isVertDiv;
+
+        // the splitting line of an internal node
+        private double split;
+
+        // the left/bottom subtree
+        private Node lb;
+
+        // the right/top subtree
+        private Node rt;
+
+        private Node(int bucketSize) {
+            xs = new double[bucketSize];
+            ys = new double[bucketSize];
+            n = 0;
+            isVertDiv = true;
+        }
+    }
+
+    // the closest point found so far and its squared distance
+    private static class Nearest {
+        private double x;
+        private double y;
+        private double dist = Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,453 @@
+/******************************************************************************
+ *  Compilation:  javac CompactKdTree.java
+ *  Execution:    java -ea CompactKdTree
+ *  Dependencies: KdTree.java KdPartition.java KdTreeChecker.java
+ *
+ *  A 2d-tree with the same API as KdTree that keeps no per-node objects.
+ *  Node i stores its point in xs[i], ys[i] and its children in left[i],
+ *  right[i]; the rectangle of a node is derived on the way down instead
+ *  of being stored. That is 24 bytes per point against roughly 110 bytes
+ *  for a KdTree node with its Point2D and RectHV.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+import edu.princeton.cs.algs4.StdDraw;
+
+public class CompactKdTree {
+
+    private static final int NIL = -1;
+    private static final int INIT_CAPACITY = 16;
+
+    private double[] xs;
+    private double[] ys;
+    private int[] left;
+    private int[] right;
+    private int root;
+    private int size;
+
+    // construct an empty set of points
+    public CompactKdTree() {
+        xs = new double[INIT_CAPACITY];
+        ys = new double[INIT_CAPACITY];
+        left = new int[INIT_CAPACITY];
+        right = new int[INIT_CAPACITY];
+        root = NIL;
+        size = 0;
+    }
+
+    // construct a balanced set of the given points (duplicates are ignored)
+    public CompactKdTree(Point2D[] points) {
+        if (points == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double[] x = new double[points.length];
+        double[] y = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            if (points[i] == null) {
+                throw new java.lang.NullPointerException();
+            }
+            x[i] = points[i].x();
+            y[i] = points[i].y();
+        }
+        load(x, y);
+    }
+
+    // construct a balanced set of the points (x[i], y[i]) (duplicates are
+    // ignored), for example as read by PointFileReader
+    public CompactKdTree(double[] x, double[] y) {
+        if (x == null || y == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (x.length != y.length) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        for (int i = 0; i < x.length; i++) {
+            // same checks as Point2D
+            if (Double.isNaN(x[i]) || Double.isInfinite(x[i])
+                    || Double.isNaN(y[i]) || Double.isInfinite(y[i])) {
+                throw new java.lang.IllegalArgumentException();
+            }
+        }
+        load(x.clone(), y.clone());
+    }
+
+    // is the set empty?
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of points in the set
+    public int size() {
+        return size;
+    }
+
+    // add the point to the set (if it is not already in the set)
+    public void insert(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+        if (root == NIL) {
+            root = newNode(x, y);
+            return;
+        }
+
+        int node = root;
+        boolean isVertDiv = true;
+        while (true) {
+            if (xs[node] == x && ys[node] == y) {
+                return;
+            }
+
+            boolean isLB = isVertDiv ? x < xs[node] : y < ys[node];
+            int next = isLB ? left[node] : right[node];
+            if (next == NIL) {
+                int child = newNode(x, y);
+                if (isLB) {
+                    left[node] = child;
+                } else {
+                    right[node] = child;
+                }
+                return;
+            }
+            node = next;
+            isVertDiv = !isVertDiv;
+        }
+    }
+
+    // does the set contain point p?
+    public boolean contains(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+        int node = root;
+        boolean isVertDiv = true;
+        while (node != NIL) {
+            if (xs[node] == x && ys[node] == y) {
+                return true;
+            }
+            boolean isLB = isVertDiv ? x < xs[node] : y < ys[node];
+            node = isLB ? left[node] : right[node];
+            isVertDiv = !isVertDiv;
+        }
+        return false;
+    }
+
+    // draw all points to standard draw
+    public void draw() {
+        StdDraw.show(0);
+        StdDraw.setXscale(0, 1);
+        StdDraw.setYscale(0, 1);
+        draw(root, true, 0d, 0d, 1d, 1d);
+        StdDraw.show();
+    }
+
+    // all points that are inside the rectangle
+    public Iterable<Point2D> range(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        range(root, true, rect, points);
+        return points;
+    }
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    public Point2D nearest(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        if (root == NIL) {
+            return null;
+        }
+
+        double inf = Double.POSITIVE_INFINITY;
+        int best = nearest(root, true, p.x(), p.y(), -inf, -inf, inf, inf,
+                root);
+        return new Point2D(xs[best], ys[best]);
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) {
+        System.out.println("Running tests...");
+        testContains();
+        testAgainstKdTree();
+    }
+
+    private static void testContains() {
+        System.out.println("testContains");
+        CompactKdTree tree = new CompactKdTree();
+
+        tree.insert(new Point2D(0.5d, 0.5d));
+        tree.insert(new Point2D(0.25d, 0.5d));
+        tree.insert(new Point2D(0.75d, 0.5d));
+        tree.insert(new Point2D(0.75d, 0.5d));
+        assert tree.size() == 3;
+
+        assert tree.contains(new Point2D(0.5d, 0.5d));
+        assert tree.contains(new Point2D(0.25d, 0.5d));
+        assert tree.contains(new Point2D(0.75d, 0.5d));
+        assert !tree.contains(new Point2D(0.0d, 0.0d));
+        assert !tree.contains(new Point2D(0.3d, 0.3d));
+    }
+
+    private static void testAgainstKdTree() {
+        System.out.println("testAgainstKdTree");
+
+        Random rnd = new Random(3);
+        Point2D[] points = KdTreeChecker.points(rnd, 20000);
+        CompactKdTree inserted = new CompactKdTree();
+        for (Point2D p : points) {
+            inserted.insert(p);
+        }
+        CompactKdTree balanced = new CompactKdTree(points);
+        double[] xs = new double[points.length];
+        double[] ys = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            xs[i] = points[i].x();
+            ys[i] = points[i].y();
+        }
+        CompactKdTree primitive = new CompactKdTree(xs, ys);
+        KdTreeChecker.check(points, rnd, checker(inserted), checker(balanced),
+                checker(primitive));
+    }
+
+    // adapts a tree to the differential test against KdTree
+    private static KdTreeChecker checker(final CompactKdTree tree) {
+        return new KdTreeChecker() {
+            @Override
+            int size() {
+                return tree.size();
+            }
+
+            @Override
+            boolean contains(Point2D p) {
+                return tree.contains(p);
+            }
+
+            @Override
+            Point2D nearest(Point2D p) {
+                return tree.nearest(p);
+            }
+
+            @Override
+            Iterable<Point2D> range(RectHV rect) {
+                return tree.range(rect);
+            }
+        };
+    }
+
+    // takes over the coordinate arrays and builds a balanced tree of them
+    private void load(double[] x, double[] y) {
+        int capacity = Math.max(INIT_CAPACITY, x.length);
+        xs = Arrays.copyOf(x, capacity);
+        ys = Arrays.copyOf(y, capacity);
+        left = new int[capacity];
+        right = new int[capacity];
+
+        // drop duplicates so that every point ends up in exactly one node
+        new Partition(true).sort(0, x.length - 1);
+        size = 0;
+        for (int i = 0; i < x.length; i++) {
+            if (size == 0 || !equal(i, size - 1)) {
+                xs[size] = xs[i] == 0d ? 0d : xs[i];
+                ys[size] = ys[i] == 0d ? 0d : ys[i];
+                size++;
+            }
+        }
+
+        // the median of every range becomes the node stored at its index
+        root = build(0, size, true);
+    }
+
+    private boolean equal(int i, int j) {
+        return xs[i] == xs[j] && ys[i] == ys[j];
+    }
+
+    private int newNode(double x, double y) {
+        if (size == xs.length) {
+            int capacity = 2 * size;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+        }
+        xs[size] = x;
+        ys[size] = y;
+        left[size] = NIL;
+        right[size] = NIL;
+        return size++;
+    }
+
+    // builds a balanced subtree over the unique points in [lo, hi);
+    // the points are permuted in place and the median of each range
+    // becomes the node stored at its index
+    private int build(int lo, int hi, boolean isVertDiv) {
+        if (lo >= hi) {
+            return NIL;
+        }
+
+        int mid = new Partition(isVertDiv).median(lo, hi);
+
+        left[mid] = build(lo, mid, !isVertDiv);
+        right[mid] = build(mid + 1, hi, !isVertDiv);
+        return mid;
+    }
+
+    private void swap(int i, int j) {
+        double x = xs[i];
+        double y = ys[i];
+        xs[i] = xs[j];
+        ys[i] = ys[j];
+        xs[j] = x;
+        ys[j] = y;
+    }
+
+    // returns the index of the closest point to (qx, qy) in the subtree,
+    // or best if none is closer; the subtree lies within
+    // [xmin, xmax] x [ymin, ymax]
+    private int nearest(int node, boolean isVertDiv, double qx, double qy,
+            double xmin, double ymin, double xmax, double ymax, int best) {
+        if (node == NIL) {
+            return best;
+        }
+
+        double bestDx = xs[best] - qx;
+        double bestDy = ys[best] - qy;
+        double distBest = bestDx * bestDx + bestDy * bestDy;
+
+        // prune subtrees whose rectangle is farther away than the best so far
+        double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+        double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+        if (dx * dx + dy * dy > distBest) {
+            return best;
+        }
+
+        double nodeDx = xs[node] - qx;
+        double nodeDy = ys[node] - qy;
+        if (nodeDx * nodeDx + nodeDy * nodeDy < distBest) {
+            best = node;
+        }
+
+        // go towards the query point first
+        if (isVertDiv) {
+            double split = xs[node];
+            if (qx < split) {
+                best = nearest(left[node], false, qx, qy, xmin, ymin, split,
+                        ymax, best);
+                best = nearest(right[node], false, qx, qy, split, ymin, xmax,
+                        ymax, best);
+            } else {
+                best = nearest(right[node], false, qx, qy, split, ymin, xmax,
+                        ymax, best);
+                best = nearest(left[node], false, qx, qy, xmin, ymin, split,
+                        ymax, best);
+            }
+        } else {
+            double split = ys[node];
+            if (qy < split) {
+                best = nearest(left[node], true, qx, qy, xmin, ymin, xmax,
+                        split, best);
+                best = nearest(right[node], true, qx, qy, xmin, split, xmax,
+                        ymax, best);
+            } else {
+                best = nearest(right[node], true, qx, qy, xmin, split, xmax,
+                        ymax, best);
+                best = nearest(left[node], true, qx, qy, xmin, ymin, xmax,
+                        split, best);
+            }
+        }
+        return best;
+    }
+
+    private void range(int node, boolean isVertDiv, RectHV rect,
+            ArrayList<Point2D> points) {
+        if (node == NIL) {
+            return;
+        }
+
+        double x = xs[node];
+        double y = ys[node];
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin()
+                && y <= rect.ymax()) {
+            points.add(new Point2D(x, y));
+        }
+
+        // the left/bottom subtree only holds keys below the split,
+        // the right/top subtree keys at or above it
+        double split = isVertDiv ? x : y;
+        double min = isVertDiv ? rect.xmin() : rect.ymin();
+        double max = isVertDiv ? rect.xmax() : rect.ymax();
+        if (min < split) {
+            range(left[node], !isVertDiv, rect, points);
+        }
+        if (max >= split) {
+            range(right[node], !isVertDiv, rect, points);
+        }
+    }
+
+    private void draw(int node, boolean isVertDiv, double xmin, double ymin,
+            double xmax, double ymax) {
+        if (node == NIL) {
+            return;
+        }
+
+        double x = xs[node];
+        double y = ys[node];
+        StdDraw.setPenColor(StdDraw.BLACK);
+        StdDraw.setPenRadius(.01);
+        StdDraw.point(x, y);
+
+        StdDraw.setPenRadius();
+        if (isVertDiv) {
+            StdDraw.setPenColor(StdDraw.RED);
+            StdDraw.line(x, ymin, x, ymax);
+            draw(left[node], false, xmin, ymin, x, ymax);
+            draw(right[node], false, x, ymin, xmax, ymax);
+        } else {
+            StdDraw.setPenColor(StdDraw.BLUE);
+            StdDraw.line(xmin, y, xmax, y);
+            draw(left[node], true, xmin, ymin, xmax, y);
+            draw(right[node], true, xmin, y, xmax, ymax);
+        }
+    }
+
+    // the median split of build(), along one axis, and the sort of load()
+    private final class Partition extends KdPartition {
+        private final boolean isVertDiv;
+
+        private Partition(boolean isVertDiv) {
+            this.isVertDiv = isVertDiv;
+        }
+
+        @Override
+        double key(int i) {
+            return isVertDiv ? xs[i] : ys[i];
+        }
+
+        @Override
+        void swap(int i, int j) {
+            CompactKdTree.this.swap(i, j);
+        }
+
+        // by x-coordinate, then y-coordinate, whatever the axis
+        @Override
+        boolean less(int i, int j) {
+            return xs[i] < xs[j] || (xs[i] == xs[j] && ys[i] < ys[j]);
+        }
+    }
+}
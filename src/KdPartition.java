@@ -0,0 +1,136 @@
+/******************************************************************************
+ *  Compilation:  javac KdPartition.java
+ *  Execution:    none
+ *  Dependencies: none
+ *
+ *  The median split the 2d-trees are bulk-loaded with. A quickselect
+ *  finds the median of a range along one axis, which is then moved back
+ *  to the first element with its key, since insert() sends equal keys to
+ *  the right/top subtree. A subclass says what the key of an element is
+ *  and how to swap two of them. A sort, for dropping duplicates before
+ *  a build, comes with it.
+ *
+ ******************************************************************************/
+
+abstract class KdPartition {
+
+    // the key of element i along the axis being split
+    abstract double key(int i);
+
+    abstract void swap(int i, int j);
+
+    // the order sort() puts the elements in; by key unless overridden
+    boolean less(int i, int j) {
+        return key(i) < key(j);
+    }
+
+    // sorts [lo..hi] by less(), which leaves equal elements next to each
+    // other so that duplicates can be dropped in one pass
+    final void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            int mid = lo + (hi - lo) / 2;
+            if (less(mid, lo)) {
+                swap(lo, mid);
+            }
+            if (less(hi, lo)) {
+                swap(lo, hi);
+            }
+            if (less(hi, mid)) {
+                swap(mid, hi);
+            }
+            swap(mid, hi - 1);
+
+            int pivot = hi - 1;
+            int i = lo;
+            int j = hi - 1;
+            while (true) {
+                while (less(++i, pivot)) {
+                    // skip
+                }
+                while (less(pivot, --j)) {
+                    // skip
+                }
+                if (i >= j) {
+                    break;
+                }
+                swap(i, j);
+            }
+            swap(i, hi - 1);
+
+            // recurse into the smaller side to bound the stack depth
+            if (i - lo < hi - i) {
+                sort(lo, i - 1);
+                lo = i + 1;
+            } else {
+                sort(i + 1, hi);
+                hi = i - 1;
+            }
+        }
+
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && less(j, j - 1); j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    // rearranges [lo, hi) around the median key and returns the index of
+    // the first element with that key: smaller keys are before it and
+    // greater or equal keys after it
+    final int median(int lo, int hi) {
+        int mid = lo + (hi - lo) / 2;
+        select(lo, hi - 1, mid);
+
+        double key = key(mid);
+        int i = lo;
+        for (int j = lo; j < mid; j++) {
+            if (key(j) < key) {
+                swap(i++, j);
+            }
+        }
+        swap(i, mid);
+        return i;
+    }
+
+    // rearranges [lo..hi] so that k holds the element with the k-th
+    // smallest key, smaller or equal keys before it and greater or equal
+    // keys after it
+    private void select(int lo, int hi, int k) {
+        while (hi > lo) {
+            // median of three guards against sorted input
+            int mid = lo + (hi - lo) / 2;
+            if (key(mid) < key(lo)) {
+                swap(lo, mid);
+            }
+            if (key(hi) < key(lo)) {
+                swap(lo, hi);
+            }
+            if (key(hi) < key(mid)) {
+                swap(mid, hi);
+            }
+            double pivot = key(mid);
+
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key(i) < pivot) {
+                    i++;
+                }
+                while (key(j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
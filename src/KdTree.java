@@ -1,32 +1,232 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.Vector;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
-import edu.princeton.cs.algs4.In;
 import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.RectHV;
 import edu.princeton.cs.algs4.StdDraw;
 
 public class KdTree {
 
+    // queries per fork/join task in nearestAll
+    private static final int NEAREST_ALL_CUTOFF = 1024;
+
+    // nodes a subtree needs before parallelRange() and rangeStream() hand
+    // it to another thread
+    private static final int PARALLEL_RANGE_CUTOFF = 1 << 12;
+
+    // nodes the larger side of a node pair needs before
+    // parallelJoinWithin() forks its halves as separate tasks
+    private static final int PARALLEL_JOIN_CUTOFF = 1 << 12;
+
+    // grid cells per axis when sorting queries along the Morton curve
+    private static final int MORTON_CELLS = 1 << 16;
+
+    // one reusable nearest neighbor search per thread, so that concurrent
+    // queries never share it and a query allocates nothing
+    private static final ThreadLocal<NearestSearch> NEAREST_SEARCH =
+            new ThreadLocal<NearestSearch>() {
+                @Override
+                protected NearestSearch initialValue() {
+                    return new NearestSearch();
+                }
+            };
+
+    // the same for searches of a frozen copy
+    private static final ThreadLocal<FrozenSearch> FROZEN_SEARCH =
+            new ThreadLocal<FrozenSearch>() {
+                @Override
+                protected FrozenSearch initialValue() {
+                    return new FrozenSearch();
+                }
+            };
+
+    // default for the largest fraction of tombstones a subtree may hold
+    private static final double REBUILD_FRACTION = 0.25d;
+
     private Node root;
     private int size;
-    private ThreadLocal<Vector<Point2D>> rangePoints;
-    private ThreadLocal<RectHV> queryRect;
-    private ThreadLocal<Point2D> closestSoFar;
-    private ThreadLocal<Point2D> queryPoint;
-    private ThreadLocal<Double> distanceBest;
+    private double rebuildFraction;
+    private double balanceFactor;
+    private RectHV domain;
+    private boolean isGrowing;
 
-    // construct an empty set of points
+    // nodes rebuilt by rebalance() so far, to check the amortized bound
+    private long rebuilt;
+
+    // does every node keep a Summary of its subtree?
+    private boolean isAggregating;
+
+    // the statistics collected so far, kept while collecting is off;
+    // recorder is the same object while it is on and null otherwise, so
+    // that a query only reads one field to find out
+    private KdTreeStats.Recorder stats;
+    private volatile KdTreeStats.Recorder recorder;
+
+    // a flat copy of the tree made by freeze(), dropped on any change
+    private Frozen frozen;
+
+    // construct an empty set of points in the unit square, which grows to
+    // take in points that are inserted outside of it
     public KdTree() {
+        this(new RectHV(0d, 0d, 1d, 1d), true);
+    }
+
+    // construct an empty set of points that all lie in the domain
+    public KdTree(RectHV domain) {
+        this(domain, false);
+    }
+
+    // construct an empty set of points in the domain; if grow is true the
+    // domain is extended to take in points inserted outside of it,
+    // otherwise inserting them is an error
+    public KdTree(RectHV domain, boolean grow) {
+        if (domain == null) {
+            throw new java.lang.NullPointerException();
+        }
+
         root = null;
         size = 0;
+        rebuildFraction = REBUILD_FRACTION;
+        balanceFactor = 1d;
+        this.domain = domain;
+        isGrowing = grow;
+    }
+
+    // construct a balanced set of the given points (duplicates are ignored)
+    public KdTree(Point2D[] points) {
+        this();
+        if (points == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        Point2D[] unique = points.clone();
+        for (Point2D p : unique) {
+            if (p == null) {
+                throw new java.lang.NullPointerException();
+            }
+        }
+
+        // drop duplicates so that every point ends up in exactly one node
+        Arrays.sort(unique);
+        int n = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (n == 0 || !unique[n - 1].equals(unique[i])) {
+                unique[n++] = unique[i];
+            }
+        }
+
+        Node[] nodes = new Node[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new Node();
+            nodes[i].p = unique[i];
+            grow(unique[i]);
+        }
+        root = build(nodes, 0, n, domain, true);
+        size = n;
+    }
+
+    // a balanced set of the given points (duplicates are ignored)
+    public static KdTree bulkLoad(Point2D[] points) {
+        return new KdTree(points);
+    }
+
+    // the set saved to the file by save(), memory-mapped for queries
+    public static MappedKdTree open(Path file) throws IOException {
+        return MappedKdTree.open(file);
+    }
+
+    // write the tree as it is to the file, in the format read by open();
+    // the points only, without their weights
+    public void save(Path file) throws IOException {
+        if (file == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MappedKdTree.MAGIC);
+            buffer.putInt(MappedKdTree.VERSION);
+            buffer.putInt(nodes(root));
+            buffer.putInt(size);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putDouble(domain.xmin());
+            buffer.putDouble(domain.ymin());
+            buffer.putDouble(domain.xmax());
+            buffer.putDouble(domain.ymax());
+            buffer.position(MappedKdTree.HEADER_BYTES);
+
+            // nodes go out in preorder, so the left/bottom child of node i
+            // is node i + 1 and its right/top child follows the whole
+            // left/bottom subtree
+            ArrayDeque<Node> stack = new ArrayDeque<Node>();
+            if (root != null) {
+                stack.push(root);
+            }
+            for (int i = 0; !stack.isEmpty(); i++) {
+                Node x = stack.pop();
+                int lb = x.lb == null ? 0 : i + 2;
+                int rt = x.rt == null ? 0 : i + 2 + nodes(x.lb);
+                if (buffer.remaining() < MappedKdTree.NODE_BYTES) {
+                    write(channel, buffer);
+                }
+                buffer.putDouble(x.p.x());
+                buffer.putDouble(x.p.y());
+                buffer.putInt(x.deleted ? lb | MappedKdTree.DELETED : lb);
+                buffer.putInt(rt);
+
+                if (x.rt != null) {
+                    stack.push(x.rt);
+                }
+                if (x.lb != null) {
+                    stack.push(x.lb);
+                }
+            }
+            write(channel, buffer);
+        } finally {
+            channel.close();
+        }
     }
 
     // is the set empty?
     public boolean isEmpty() {
-        return root == null;
+        return size == 0;
     }
 
     // number of points in the set
@@ -34,13 +234,161 @@ public class KdTree {
         return size;
     }
 
+    // the rectangle all points of the set lie in
+    public RectHV domain() {
+        return domain;
+    }
+
     // add the point to the set (if it is not already in the set)
     public void insert(Point2D p) {
         if (p == null) {
             throw new java.lang.NullPointerException();
         }
 
-        root = insert(root, p, true);
+        add(p, Double.NaN);
+    }
+
+    // add the point to the set with the given weight, or set its weight
+    // if it is already in the set; turns on subtree aggregates, where
+    // the points inserted without a weight weigh 1
+    public void insert(Point2D p, double weight) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (Double.isNaN(weight) || Double.isInfinite(weight)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        setAggregatesEnabled(true);
+        add(p, weight);
+    }
+
+    // add the point; a NaN weight means 1 for a new point and leaves the
+    // weight of a point already in the set as it is
+    private void add(Point2D p, double weight) {
+        if (!domain.contains(p)) {
+            if (!isGrowing) {
+                throw new java.lang.IllegalArgumentException(p
+                        + " is outside of " + domain);
+            }
+            grow(p);
+        }
+
+        int before = size;
+        root = insert(root, p, weight, true);
+        if (size > before) {
+            frozen = null;
+            if (balanceFactor < 1d) {
+                root = rebalance(root, p, true);
+            }
+        }
+    }
+
+    // remove the point from the set (if it is in the set)
+    public void delete(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        // the node is only marked as deleted; once too many of them pile
+        // up, the largest such subtree on the path is rebuilt without them
+        if (delete(root, p, true)) {
+            size--;
+            frozen = null;
+            root = rebalance(root, p, true);
+        }
+    }
+
+    // copy the tree into flat arrays in van Emde Boas order, which keeps
+    // every top part of the tree and each subtree hanging below it
+    // contiguous at every scale, so that a descent touches few cache
+    // lines whatever their size; contains(), range() and nearest() use
+    // the copy until the next insert or delete
+    public void freeze() {
+        frozen = new Frozen(root, height(root), domain);
+    }
+
+    // have the queries been running on a frozen copy since the last change?
+    public boolean isFrozen() {
+        return frozen != null;
+    }
+
+    // the largest fraction of deleted points a subtree may hold before it
+    // is rebuilt without them
+    public void setRebuildFraction(double fraction) {
+        if (!(fraction > 0d && fraction <= 1d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        rebuildFraction = fraction;
+    }
+
+    // keep the tree balanced on insert: a subtree is rebuilt as soon as
+    // one of its children holds more than alpha of its nodes;
+    // 1 (the default) turns rebalancing off
+    public void setBalanceFactor(double alpha) {
+        if (!(alpha > 0.5d && alpha <= 1d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        balanceFactor = alpha;
+    }
+
+    // keep (or stop keeping) the count, coordinate sums and weight sum of
+    // the points below every node, which aggregate() adds up in O(1) per
+    // subtree inside the query; off by default, which saves the memory
+    public void setAggregatesEnabled(boolean enabled) {
+        if (enabled == isAggregating) {
+            return;
+        }
+        isAggregating = enabled;
+        summarizeAll(root, enabled);
+    }
+
+    // does every node keep the aggregates of its subtree?
+    public boolean isAggregatesEnabled() {
+        return isAggregating;
+    }
+
+    // start or stop collecting query statistics; off by default, and then
+    // queries pay for no more than reading one field
+    public synchronized void setStatsEnabled(boolean enabled) {
+        if (enabled && stats == null) {
+            stats = new KdTreeStats.Recorder();
+        }
+        recorder = enabled ? stats : null;
+    }
+
+    // is the tree collecting query statistics?
+    public boolean isStatsEnabled() {
+        return recorder != null;
+    }
+
+    // the query statistics collected so far
+    public synchronized KdTreeStats stats() {
+        if (stats == null) {
+            return new KdTreeStats.Recorder().snapshot();
+        }
+        return stats.snapshot();
+    }
+
+    // forget the query statistics collected so far
+    public synchronized void resetStats() {
+        if (stats != null) {
+            stats.reset();
+        }
+    }
+
+    // make the query statistics visible over JMX under the name, for
+    // example "kdtree:type=KdTree,name=roads"
+    public ObjectName registerStats(String name) throws JMException {
+        if (name == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new StatsBean(), KdTreeStatsMBean.class),
+                objectName);
+        return objectName;
     }
 
     // does the set contain point p?
@@ -49,14 +397,18 @@ public class KdTree {
             throw new java.lang.NullPointerException();
         }
 
+        Frozen frozen = this.frozen;
+        if (frozen != null) {
+            return frozen.contains(p.x(), p.y());
+        }
         return contains(root, p, true);
     }
 
     // draw all points to standard draw
     public void draw() {
         StdDraw.show(0);
-        StdDraw.setXscale(0, 1);
-        StdDraw.setYscale(0, 1);
+        StdDraw.setXscale(domain.xmin(), domain.xmax());
+        StdDraw.setYscale(domain.ymin(), domain.ymax());
         draw(root, true);
         StdDraw.show();
     }
@@ -67,23 +419,145 @@ public class KdTree {
             throw new java.lang.NullPointerException();
         }
 
-        rangePoints = new ThreadLocal<Vector<Point2D>>() {
+        // queries keep their state on the stack so that any number of
+        // threads can search a tree that is not being modified
+        final ArrayList<Point2D> points = new ArrayList<Point2D>();
+        range(rect, new Consumer<Point2D>() {
             @Override
-            protected Vector<Point2D> initialValue() {
-                return new Vector<Point2D>();
+            public void accept(Point2D p) {
+                points.add(p);
             }
-        };
+        });
+
+        return points;
+    }
+
+    // pass every point that is inside the rectangle to the action
+    public void range(RectHV rect, Consumer<? super Point2D> action) {
+        if (rect == null || action == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        KdTreeStats.Recorder recorder = this.recorder;
+        Frozen frozen = this.frozen;
+        if (recorder == null) {
+            if (frozen != null) {
+                frozen.range(rect, action, null);
+            } else {
+                range(root, true, rect, action);
+            }
+            return;
+        }
+
+        // the time includes the action; a frozen tree is measured on the
+        // copy it answers from
+        long start = System.nanoTime();
+        long[] counts = new long[3];
+        if (frozen != null) {
+            frozen.range(rect, action, counts);
+        } else {
+            range(root, rect, action, counts);
+        }
+        recorder.range.record(System.nanoTime() - start, counts[0],
+                counts[1], counts[0], counts[2]);
+    }
+
+    // all points that are inside the rectangle, found as they are iterated
+    public Iterable<Point2D> lazyRange(final RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
 
-        queryRect = new ThreadLocal<RectHV>() {
+        return new Iterable<Point2D>() {
             @Override
-            protected RectHV initialValue() {
-                return rect;
+            public Iterator<Point2D> iterator() {
+                return new RangeIterator(root, rect);
             }
         };
+    }
+
+    // all points that are inside the rectangle, searched in parallel;
+    // subtrees of more than PARALLEL_RANGE_CUTOFF nodes are forked off
+    // (not counted by the statistics)
+    public Iterable<Point2D> parallelRange(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        if (root == null) {
+            return new ArrayList<Point2D>();
+        }
+
+        // every task fills its own array and the arrays are copied into
+        // one once all tasks are done
+        RangeTask task = new RangeTask(root, rect);
+        ForkJoinPool.commonPool().invoke(task);
+        Point2D[] points = new Point2D[task.size()];
+        task.copyTo(points, 0);
+        return Arrays.asList(points);
+    }
+
+    // a stream of the points that are inside the rectangle; a parallel
+    // stream splits off whole subtrees of the search
+    public Stream<Point2D> rangeStream(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        return StreamSupport.stream(new RangeSpliterator(root, rect), false);
+    }
+
+    // the number, coordinate sums and total weight of the points inside
+    // the rectangle; with aggregates on, subtrees whose rectangle lies
+    // inside it are taken whole, otherwise every point weighs 1
+    public Aggregate aggregate(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double[] sums = new double[4];
+        aggregate(root, rect, sums);
+        return new Aggregate((int) sums[0], sums[1], sums[2], sums[3]);
+    }
+
+    // pass every pair of a point of this set and a point of the other
+    // set at most d apart to the action, as (this point, other point)
+    public void joinWithin(KdTree other, double d,
+            BiConsumer<? super Point2D, ? super Point2D> action) {
+        if (other == null || action == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (!(d >= 0d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        join(root, other.root, d * d, action);
+    }
+
+    // joinWithin() on the common fork/join pool; the action is called
+    // from several threads at once
+    public void parallelJoinWithin(KdTree other, double d,
+            BiConsumer<? super Point2D, ? super Point2D> action) {
+        if (other == null || action == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (!(d >= 0d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        if (root != null && other.root != null) {
+            ForkJoinPool.commonPool().invoke(
+                    new JoinTask(root, other.root, d * d, action));
+        }
+    }
 
-        range(root, true);
+    // number of points that are inside the rectangle
+    public int count(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
 
-        return rangePoints.get();
+        return count(root, rect);
     }
 
     // a nearest neighbor in the set to point p; null if the set is empty
@@ -95,30 +569,154 @@ public class KdTree {
         if (root == null) {
             return null;
         }
-        closestSoFar = new ThreadLocal<Point2D>() {
-            @Override
-            protected Point2D initialValue() {
-                return root.p;
-            }
-        };
 
-        queryPoint = new ThreadLocal<Point2D>() {
-            @Override
-            protected Point2D initialValue() {
-                return p;
+        KdTreeStats.Recorder recorder = this.recorder;
+        Frozen frozen = this.frozen;
+        if (recorder == null) {
+            if (frozen != null) {
+                return frozen.nearest(p.x(), p.y(), 1d, Integer.MAX_VALUE,
+                        FROZEN_SEARCH.get());
             }
-        };
+            return NEAREST_SEARCH.get().nearest(root, p.x(), p.y(), null);
+        }
 
-        distanceBest = new ThreadLocal<Double>() {
-            @Override
-            protected Double initialValue() {
-                return Double.MAX_VALUE;
+        // a frozen tree is measured on the copy it answers from
+        long start = System.nanoTime();
+        Point2D nearest;
+        int visited;
+        int pruned;
+        if (frozen != null) {
+            FrozenSearch search = FROZEN_SEARCH.get();
+            nearest = frozen.nearest(p.x(), p.y(), 1d, Integer.MAX_VALUE,
+                    search);
+            visited = search.visited;
+            pruned = search.pruned;
+        } else {
+            NearestSearch search = NEAREST_SEARCH.get();
+            nearest = search.nearest(root, p.x(), p.y(), null);
+            visited = search.visited;
+            pruned = search.pruned;
+        }
+        recorder.nearest.record(System.nanoTime() - start, visited, pruned,
+                visited, nearest == null ? 0 : 1);
+        return nearest;
+    }
+
+    // a point in the set at most (1 + epsilon) times as far from p as its
+    // nearest neighbor; subtrees that cannot beat that are skipped
+    public NearestResult nearestApprox(Point2D p, double epsilon) {
+        return nearestApprox(p, epsilon, Integer.MAX_VALUE);
+    }
+
+    // as above, but the search gives up after looking at maxNodes nodes
+    // and returns the best point found so far; since it heads straight
+    // for p first, that is usually already close. Nodes of deleted
+    // points on the way to the first point found do not stop it, so the
+    // point is null only if the set is empty
+    public NearestResult nearestApprox(Point2D p, double epsilon,
+            int maxNodes) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (!(epsilon >= 0d) || maxNodes < 1) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        double scale = (1d + epsilon) * (1d + epsilon);
+        Frozen frozen = this.frozen;
+        if (frozen != null) {
+            FrozenSearch search = FROZEN_SEARCH.get();
+            Point2D nearest = frozen.nearest(p.x(), p.y(), scale, maxNodes,
+                    search);
+            return new NearestResult(nearest, search.visited,
+                    search.isComplete);
+        }
+        NearestSearch search = NEAREST_SEARCH.get();
+        Point2D nearest = search.nearest(root, p.x(), p.y(), null, scale,
+                maxNodes);
+        return new NearestResult(nearest, search.visited,
+                search.isComplete);
+    }
+
+    // a nearest neighbor in the set to each of the query points,
+    // searched in parallel; all null if the set is empty
+    public Point2D[] nearestAll(Point2D[] queries) {
+        if (queries == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double xmin = Double.POSITIVE_INFINITY;
+        double ymin = Double.POSITIVE_INFINITY;
+        double xmax = Double.NEGATIVE_INFINITY;
+        double ymax = Double.NEGATIVE_INFINITY;
+        for (Point2D q : queries) {
+            if (q == null) {
+                throw new java.lang.NullPointerException();
             }
-        };
+            xmin = Math.min(xmin, q.x());
+            ymin = Math.min(ymin, q.y());
+            xmax = Math.max(xmax, q.x());
+            ymax = Math.max(ymax, q.y());
+        }
+
+        Point2D[] nearest = new Point2D[queries.length];
+        if (root == null || queries.length == 0) {
+            return nearest;
+        }
+
+        // visit the queries in Morton (z-curve) order so that consecutive
+        // queries are close and the previous answer is a tight first bound;
+        // the low 31 bits carry the index of the query
+        double xscale = xmax > xmin ? MORTON_CELLS / (xmax - xmin) : 0d;
+        double yscale = ymax > ymin ? MORTON_CELLS / (ymax - ymin) : 0d;
+        long[] order = new long[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            int cellX = (int) Math.min((queries[i].x() - xmin) * xscale,
+                    MORTON_CELLS - 1);
+            int cellY = (int) Math.min((queries[i].y() - ymin) * yscale,
+                    MORTON_CELLS - 1);
+            order[i] = (interleave(cellX) | interleave(cellY) << 1) << 31 | i;
+        }
+        Arrays.parallelSort(order);
+
+        ForkJoinPool.commonPool().invoke(
+                new NearestAllTask(queries, order, nearest, 0, order.length));
+        return nearest;
+    }
+
+    // the k points in the set closest to p, nearest first
+    public Iterable<Point2D> nearest(Point2D p, int k) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (k < 1) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        // a max-heap on the distance to p holding the k best so far
+        PriorityQueue<Point2D> best = new PriorityQueue<Point2D>(
+                Math.min(k, Math.max(size, 1)), farthestFirst(p));
+        nearest(root, p, k, best);
+
+        Point2D[] points = new Point2D[best.size()];
+        for (int i = points.length - 1; i >= 0; i--) {
+            points[i] = best.poll();
+        }
+        return Arrays.asList(points);
+    }
 
-        nearest(root, true);
+    // all points within distance r of center
+    public Iterable<Point2D> withinRadius(Point2D center, double r) {
+        if (center == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (!(r >= 0d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
 
-        return closestSoFar.get();
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        withinRadius(root, center, r * r, points);
+        return points;
     }
 
     // unit testing of the methods (optional)
@@ -130,51 +728,946 @@ public class KdTree {
         testSize2();
         testCircle();
         testDuplicate();
+        testBulkLoad();
+        testConcurrentQueries();
+        testNearestK();
+        testWithinRadius();
+        testRangeVisitorAndCount();
+        testNearestAll();
+        testDelete();
+        testBalancedInsert();
+        testDomain();
+        testNearestApprox();
+        testStats();
+        testFreeze();
+        testParallelRange();
+        testAggregate();
+        testJoinWithin();
     }
 
-    private static void testDuplicate() {
-        System.out.println("testDuplicate");
-
-        KdTree tree = new KdTree();
+    private static void testJoinWithin() {
+        System.out.println("testJoinWithin");
+
+        Random rnd = new Random(25);
+        KdTree a = new KdTree();
+        Point2D[] points = new Point2D[20000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(1000) / 1000d,
+                    rnd.nextInt(1000) / 1000d);
+            if (i < 1000) {
+                a.insert(new Point2D(rnd.nextInt(1000) / 1000d,
+                        rnd.nextInt(1000) / 1000d));
+            }
+        }
+        KdTree b = new KdTree(points);
+
+        // with tombstones on both sides
+        HashSet<Point2D> deleted = new HashSet<Point2D>();
+        for (int i = 0; i < points.length; i += 10) {
+            a.delete(points[i]);
+            b.delete(points[i]);
+            deleted.add(points[i]);
+        }
+        PointSET bruteB = new PointSET();
+        for (Point2D p : points) {
+            if (!deleted.contains(p)) {
+                bruteB.insert(p);
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            a.delete(new Point2D(rnd.nextInt(1000) / 1000d,
+                    rnd.nextInt(1000) / 1000d));
+        }
 
-        double x = 0.65743d;
-        double y = 0.95637d;
+        for (double d : new double[] { 0d, 0.001d, 0.01d, 0.03d }) {
+            HashSet<List<Point2D>> expected = new HashSet<List<Point2D>>();
+            for (Point2D p : a.range(new RectHV(0d, 0d, 1d, 1d))) {
+                for (Point2D q : bruteB.withinRadius(p, d)) {
+                    expected.add(Arrays.asList(p, q));
+                }
+            }
 
-        tree.insert(new Point2D(x, y));
-        tree.insert(new Point2D(x, y));
-        int size = tree.size();
-        assert size == 1;
+            final HashSet<List<Point2D>> actual = new HashSet<List<Point2D>>();
+            a.joinWithin(b, d, new BiConsumer<Point2D, Point2D>() {
+                @Override
+                public void accept(Point2D p, Point2D q) {
+                    assert actual.add(Arrays.asList(p, q));
+                }
+            });
+            assert actual.equals(expected);
+
+            // the other way around, and in parallel
+            final HashSet<List<Point2D>> swapped =
+                    new HashSet<List<Point2D>>();
+            b.parallelJoinWithin(a, d, new BiConsumer<Point2D, Point2D>() {
+                @Override
+                public void accept(Point2D q, Point2D p) {
+                    synchronized (swapped) {
+                        assert swapped.add(Arrays.asList(p, q));
+                    }
+                }
+            });
+            assert swapped.equals(expected);
+        }
 
-        boolean isContains = tree.contains(new Point2D(x, y));
-        assert isContains;
+        final AtomicInteger pairs = new AtomicInteger();
+        BiConsumer<Point2D, Point2D> counter =
+                new BiConsumer<Point2D, Point2D>() {
+                    @Override
+                    public void accept(Point2D p, Point2D q) {
+                        pairs.incrementAndGet();
+                    }
+                };
+        new KdTree().joinWithin(b, 1d, counter);
+        b.parallelJoinWithin(new KdTree(), 1d, counter);
+        assert pairs.get() == 0;
     }
 
-    private static void testCircle() {
-        System.out.println("testCircle");
+    private static void testAggregate() {
+        System.out.println("testAggregate");
 
-        String path = "/run/media/bert/280AC22E0AF59495/coursera/algorithms/1/assignments/5/doc/kdtree/circle10.txt";
-        KdTree kdtree = loadFile(path);
+        Random rnd = new Random(24);
+        Point2D[] points = new Point2D[20000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(500) / 500d,
+                    rnd.nextInt(500) / 500d);
+        }
 
-        Point2D actual = kdtree.nearest(new Point2D(0.81d, 0.30d));
-        Point2D expected = new Point2D(0.975528d, 0.345492d);
+        // unweighted points weigh 1, with aggregates on or off
+        KdTree tree = new KdTree(points);
+        RectHV all = new RectHV(0d, 0d, 1d, 1d);
+        assert tree.aggregate(all).count() == tree.size();
+        assert tree.aggregate(all).weight() == tree.size();
+        tree.setAggregatesEnabled(true);
+        assert tree.aggregate(all).count() == tree.size();
+        assert tree.aggregate(all).weight() == tree.size();
+
+        // weights, reweighting, deletes and the rebuilds they cause
+        tree.setBalanceFactor(0.75d);
+        HashMap<Point2D, Double> weights = new HashMap<Point2D, Double>();
+        for (Point2D p : tree.range(all)) {
+            weights.put(p, 1d);
+        }
+        for (int i = 0; i < 20000; i++) {
+            Point2D p = new Point2D(rnd.nextInt(500) / 500d,
+                    rnd.nextInt(500) / 500d);
+            if (i % 3 == 0) {
+                tree.delete(p);
+                weights.remove(p);
+            } else if (i % 3 == 1) {
+                double weight = rnd.nextInt(10);
+                tree.insert(p, weight);
+                weights.put(p, weight);
+            } else {
+                tree.insert(p);
+                if (!weights.containsKey(p)) {
+                    weights.put(p, 1d);
+                }
+            }
+        }
+        tree.freeze();
+        assert tree.isAggregatesEnabled();
+        assert tree.size() == weights.size();
+
+        for (int i = 0; i < 200; i++) {
+            double x = rnd.nextDouble();
+            double y = rnd.nextDouble();
+            RectHV rect = new RectHV(x, y, Math.min(1d, x + 0.4d),
+                    Math.min(1d, y + 0.4d));
+            int count = 0;
+            double sumX = 0d;
+            double sumY = 0d;
+            double weight = 0d;
+            for (Point2D p : weights.keySet()) {
+                if (rect.contains(p)) {
+                    count++;
+                    sumX += p.x();
+                    sumY += p.y();
+                    weight += weights.get(p);
+                }
+            }
 
-        assert expected.equals(actual);
+            Aggregate aggregate = tree.aggregate(rect);
+            assert aggregate.count() == count;
+            assert aggregate.count() == tree.count(rect);
+            assert Math.abs(aggregate.sumX() - sumX) < 1e-6;
+            assert Math.abs(aggregate.sumY() - sumY) < 1e-6;
+            assert aggregate.weight() == weight;
+            if (count > 0) {
+                assert aggregate.centroid().distanceTo(new Point2D(
+                        sumX / count, sumY / count)) < 1e-9;
+            }
+        }
 
-        // System.out.println(actual);
+        tree.setAggregatesEnabled(false);
+        assert tree.aggregate(all).weight() == tree.size();
+        assert new KdTree().aggregate(all).centroid() == null;
     }
 
-    private static void testSize2() {
-        System.out.println("testSize2");
-        int numPoints = 100000;
-        int dim = 100000;
+    private static void testParallelRange() {
+        System.out.println("testParallelRange");
 
-        Random rnd = new Random();
-        HashSet<Point2D> set = new HashSet<Point2D>();
+        Random rnd = new Random(23);
+        Point2D[] points = new Point2D[50000];
+        KdTree inserted = new KdTree();
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(1000) / 1000d,
+                    rnd.nextInt(1000) / 1000d);
+            inserted.insert(points[i]);
+        }
+        KdTree balanced = new KdTree(points);
+        for (int i = 0; i < points.length; i += 7) {
+            balanced.delete(points[i]);
+        }
 
-        KdTree tree = new KdTree();
+        for (KdTree tree : new KdTree[] { inserted, balanced }) {
+            for (int i = 0; i < 20; i++) {
+                double x = rnd.nextDouble();
+                double y = rnd.nextDouble();
+                double size = i % 2 == 0 ? 0.05d : 1d;
+                RectHV rect = new RectHV(x * (1d - size), y * (1d - size),
+                        x * (1d - size) + size, y * (1d - size) + size);
+
+                HashSet<Point2D> expected = new HashSet<Point2D>();
+                for (Point2D p : tree.range(rect)) {
+                    expected.add(p);
+                }
 
-        for (int i = 0; i < numPoints; i++) {
-            boolean isUnique = false;
+                HashSet<Point2D> parallel = new HashSet<Point2D>();
+                for (Point2D p : tree.parallelRange(rect)) {
+                    assert parallel.add(p);
+                }
+                assert parallel.equals(expected);
+
+                assert tree.rangeStream(rect).count() == expected.size();
+                assert tree.rangeStream(rect).parallel()
+                        .collect(Collectors.toSet()).equals(expected);
+            }
+        }
+
+        // the whole tree splits into parts that together hold every point
+        Spliterator<Point2D> first = balanced.rangeStream(
+                new RectHV(0d, 0d, 1d, 1d)).spliterator();
+        Spliterator<Point2D> second = first.trySplit();
+        assert second != null;
+        assert first.estimateSize() < balanced.size();
+        final HashSet<Point2D> all = new HashSet<Point2D>();
+        Consumer<Point2D> add = new Consumer<Point2D>() {
+            @Override
+            public void accept(Point2D p) {
+                assert all.add(p);
+            }
+        };
+        first.forEachRemaining(add);
+        second.forEachRemaining(add);
+        assert all.size() == balanced.size();
+
+        KdTree empty = new KdTree();
+        assert !empty.parallelRange(new RectHV(0d, 0d, 1d, 1d)).iterator()
+                .hasNext();
+        assert empty.rangeStream(new RectHV(0d, 0d, 1d, 1d)).parallel()
+                .count() == 0;
+    }
+
+    private static void testFreeze() {
+        System.out.println("testFreeze");
+
+        KdTree empty = new KdTree();
+        empty.freeze();
+        assert empty.isFrozen();
+        assert empty.nearest(new Point2D(0.5d, 0.5d)) == null;
+        assert !empty.contains(new Point2D(0.5d, 0.5d));
+        assert !empty.range(new RectHV(0d, 0d, 1d, 1d)).iterator().hasNext();
+
+        Random rnd = new Random(20);
+        Point2D[] points = KdTreeGenerator.points("clustered", 20000, rnd);
+        KdTree tree = new KdTree();
+        KdTree expected = new KdTree();
+        for (int i = 0; i < points.length; i++) {
+            tree.insert(points[i]);
+            expected.insert(points[i]);
+        }
+        // tombstones are frozen along with the other nodes
+        for (int i = 0; i < points.length; i += 7) {
+            tree.delete(points[i]);
+            expected.delete(points[i]);
+        }
+
+        tree.freeze();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 500; i++) {
+                Point2D query = new Point2D(rnd.nextDouble(),
+                        rnd.nextDouble());
+                assert tree.nearest(query).distanceSquaredTo(query)
+                        == expected.nearest(query).distanceSquaredTo(query);
+                assert tree.contains(points[i]) == expected.contains(
+                        points[i]);
+
+                RectHV rect = new RectHV(query.x(), query.y(),
+                        Math.min(1d, query.x() + 0.05d),
+                        Math.min(1d, query.y() + 0.05d));
+                HashSet<Point2D> found = new HashSet<Point2D>();
+                for (Point2D p : tree.range(rect)) {
+                    found.add(p);
+                }
+                assert found.size() == expected.count(rect);
+                for (Point2D p : expected.range(rect)) {
+                    assert found.contains(p);
+                }
+            }
+            assert tree.isFrozen() == (round == 0);
+
+            // statistics and approximate searches run on the frozen copy
+            if (round == 0) {
+                tree.setStatsEnabled(true);
+                int found = 0;
+                for (int i = 0; i < 100; i++) {
+                    Point2D query = new Point2D(rnd.nextDouble(),
+                            rnd.nextDouble());
+                    assert tree.nearest(query).distanceSquaredTo(query)
+                            == expected.nearest(query).distanceSquaredTo(
+                                    query);
+                    NearestResult exact = tree.nearestApprox(query, 0d);
+                    assert exact.isComplete();
+                    assert exact.point().distanceSquaredTo(query)
+                            == expected.nearest(query).distanceSquaredTo(
+                                    query);
+                    NearestResult approx = tree.nearestApprox(query, 0.5d,
+                            5);
+                    assert approx.point() != null;
+                    assert approx.nodesVisited() <= 5;
+                    for (Point2D p : tree.range(new RectHV(query.x(),
+                            query.y(), Math.min(1d, query.x() + 0.05d),
+                            Math.min(1d, query.y() + 0.05d)))) {
+                        found++;
+                    }
+                }
+                KdTreeStats stats = tree.stats();
+                assert stats.nearest().count() == 100;
+                assert stats.nearest().nodesPruned() > 0;
+                assert stats.range().count() == 100;
+                assert stats.range().results() == found;
+                assert tree.isFrozen();
+                tree.setStatsEnabled(false);
+            }
+
+            // a change drops the frozen copy
+            tree.insert(new Point2D(0.123d, 0.456d));
+            expected.insert(new Point2D(0.123d, 0.456d));
+            assert !tree.isFrozen();
+        }
+    }
+
+    private static void testStats() {
+        System.out.println("testStats");
+
+        Random rnd = new Random(17);
+        KdTree tree = new KdTree(KdTreeGenerator.points("uniform", 10000,
+                rnd));
+        tree.nearest(new Point2D(0.5d, 0.5d));
+        assert !tree.isStatsEnabled();
+        assert tree.stats().nearest().count() == 0;
+
+        tree.setStatsEnabled(true);
+        int found = 0;
+        for (int i = 0; i < 100; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            tree.nearest(query);
+            RectHV rect = new RectHV(query.x(), query.y(),
+                    Math.min(1d, query.x() + 0.1d),
+                    Math.min(1d, query.y() + 0.1d));
+            found += tree.count(rect);
+            tree.range(rect);
+        }
+
+        KdTreeStats stats = tree.stats();
+        assert stats.nearest().count() == 100;
+        assert stats.nearest().results() == 100;
+        // a nearest search visits at least the path to a leaf
+        assert stats.nearest().meanNodesVisited() >= 10d;
+        assert stats.nearest().nodesPruned() > 0;
+        assert stats.nearest().latencyNanos(99d) > 0;
+        assert stats.range().count() == 100;
+        assert stats.range().results() == found;
+        assert stats.range().nodesVisited() >= found;
+
+        // nothing is recorded while collecting is off, but it is kept
+        tree.setStatsEnabled(false);
+        tree.nearest(new Point2D(0.5d, 0.5d));
+        assert tree.stats().nearest().count() == 100;
+        tree.resetStats();
+        assert tree.stats().nearest().count() == 0;
+
+        try {
+            ObjectName name = tree.registerStats(
+                    "kdtree:type=KdTree,name=testStats");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.setAttribute(name, new Attribute("Enabled", true));
+            tree.nearest(new Point2D(0.5d, 0.5d));
+            assert ((Long) server.getAttribute(name, "NearestCount")) == 1;
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void testNearestApprox() {
+        System.out.println("testNearestApprox");
+
+        // clusters leave wide empty gaps where exact searches wander
+        Random rnd = new Random(16);
+        Point2D[] points = KdTreeGenerator.points("clustered", 100000, rnd);
+        KdTree tree = new KdTree(points);
+        assert tree.nearestApprox(new Point2D(0.5d, 0.5d), 0.1d, 1)
+                .nodesVisited() == 1;
+        assert new KdTree().nearestApprox(new Point2D(0.5d, 0.5d), 0d)
+                .point() == null;
+
+        long exactVisited = 0;
+        long approxVisited = 0;
+        for (int i = 0; i < 2000; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            double best = tree.nearest(query).distanceTo(query);
+
+            NearestResult exact = tree.nearestApprox(query, 0d);
+            assert exact.isComplete();
+            assert exact.point().distanceTo(query) == best;
+
+            NearestResult approx = tree.nearestApprox(query, 0.5d);
+            assert approx.isComplete();
+            assert approx.point().distanceTo(query) <= 1.5d * best;
+            exactVisited += exact.nodesVisited();
+            approxVisited += approx.nodesVisited();
+
+            NearestResult budget = tree.nearestApprox(query, 0d, 20);
+            assert budget.nodesVisited() <= 20;
+            assert budget.point() != null;
+            if (budget.isComplete()) {
+                assert budget.point().distanceTo(query) == best;
+            }
+        }
+        assert approxVisited < exactVisited;
+
+        // a budget spent on deleted points still finds a point
+        tree.setRebuildFraction(1d);
+        for (int i = 0; i < points.length; i++) {
+            if (i % 100 != 0) {
+                tree.delete(points[i]);
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            double best = tree.nearest(query).distanceTo(query);
+            for (int budget = 1; budget <= 4; budget++) {
+                NearestResult result = tree.nearestApprox(query, 0d, budget);
+                assert result.point() != null;
+                assert tree.contains(result.point());
+                if (result.isComplete()) {
+                    assert result.point().distanceTo(query) == best;
+                }
+            }
+            assert tree.nearestApprox(query, 0d).point().distanceTo(query)
+                    == best;
+        }
+    }
+
+    private static void testDomain() {
+        System.out.println("testDomain");
+
+        // projected metres, far outside of the unit square
+        Random rnd = new Random(14);
+        KdTree grown = new KdTree();
+        KdTree fixed = new KdTree(new RectHV(-5e5d, -5e5d, 5e5d, 5e5d));
+        PointSET expected = new PointSET();
+        Point2D[] points = new Point2D[20000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(1000000) - 5e5d,
+                    rnd.nextInt(1000000) - 5e5d);
+            grown.insert(points[i]);
+            fixed.insert(points[i]);
+            expected.insert(points[i]);
+        }
+        KdTree bulk = new KdTree(points);
+        assert grown.size() == expected.size();
+        // growing by doubling keeps the domain within a small factor
+        assert grown.domain().width() < 4e6d && bulk.domain().width() < 4e6d;
+        assert checkRects(grown.root, grown.domain(), true);
+        assert checkRects(bulk.root, bulk.domain(), true);
+
+        try {
+            fixed.insert(new Point2D(6e5d, 0d));
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert fixed.size() == expected.size();
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            Point2D query = new Point2D(rnd.nextDouble() * 2e6d - 1e6d,
+                    rnd.nextDouble() * 2e6d - 1e6d);
+            double dist = query.distanceSquaredTo(expected.nearest(query));
+            assert grown.nearest(query).distanceSquaredTo(query) == dist;
+            assert fixed.nearest(query).distanceSquaredTo(query) == dist;
+            assert bulk.nearest(query).distanceSquaredTo(query) == dist;
+
+            RectHV rect = new RectHV(query.x(), query.y(),
+                    query.x() + 5e4d, query.y() + 5e4d);
+            int count = 0;
+            for (Point2D p : expected.range(rect)) {
+                count++;
+            }
+            assert grown.count(rect) == count;
+            assert fixed.count(rect) == count;
+            assert bulk.count(rect) == count;
+        }
+    }
+
+    // is every node's rectangle the one its position in the tree gives it?
+    private static boolean checkRects(Node x, RectHV rect,
+            boolean isVertDiv) {
+        if (x == null) {
+            return true;
+        }
+        return rect.equals(x.rect) && rect.contains(x.p)
+                && checkRects(x.lb, lbRect(x, isVertDiv), !isVertDiv)
+                && checkRects(x.rt, rtRect(x, isVertDiv), !isVertDiv);
+    }
+
+    private static void testBalancedInsert() {
+        System.out.println("testBalancedInsert");
+
+        // a sorted file would turn the plain tree into a linked list
+        int numPoints = 1000000;
+        double alpha = 0.75d;
+        KdTree tree = new KdTree();
+        tree.setBalanceFactor(alpha);
+        for (int i = 0; i < numPoints; i++) {
+            double coord = (double) i / numPoints;
+            tree.insert(new Point2D(coord, coord));
+        }
+        assert tree.size() == numPoints;
+
+        // an alpha-weight-balanced tree is at most log_{1/alpha}(n) deep
+        int maxHeight = 1 + (int) (Math.log(numPoints) / Math.log(1 / alpha));
+        assert tree.height(tree.root) <= maxHeight;
+
+        Random rnd = new Random(29);
+        for (int i = 0; i < 1000; i++) {
+            int j = rnd.nextInt(numPoints);
+            double coord = (double) j / numPoints;
+            Point2D p = new Point2D(coord, coord);
+            assert tree.contains(p);
+            assert tree.nearest(new Point2D(coord, coord + 1e-9d)).equals(p);
+        }
+
+        // deletes and re-inserts keep it balanced too
+        for (int i = 0; i < numPoints; i += 2) {
+            double coord = (double) i / numPoints;
+            tree.delete(new Point2D(coord, coord));
+        }
+        for (int i = 0; i < numPoints; i += 4) {
+            double coord = (double) i / numPoints;
+            tree.insert(new Point2D(coord, coord));
+        }
+        assert tree.size() == numPoints / 2 + numPoints / 4;
+        assert tree.height(tree.root) <= maxHeight;
+
+        // equal keys all go right, so a vertical line or a few columns
+        // can never be split evenly; they must not be rebuilt on every
+        // insert
+        int n = 40000;
+        double bound = 4d * n * Math.log(n) / Math.log(2);
+        for (int columns : new int[] { 1, 10 }) {
+            KdTree line = new KdTree();
+            line.setBalanceFactor(alpha);
+            for (int i = 0; i < n; i++) {
+                line.insert(new Point2D((i % columns) / 10d,
+                        rnd.nextDouble()));
+            }
+            assert line.size() == n;
+            assert line.rebuilt <= bound;
+        }
+    }
+
+    private static void testDelete() {
+        System.out.println("testDelete");
+
+        KdTree tree = new KdTree();
+        tree.delete(new Point2D(0.5d, 0.5d));
+        assert tree.isEmpty();
+
+        Random rnd = new Random(23);
+        Point2D[] points = new Point2D[5000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(100) / 100d,
+                    rnd.nextInt(100) / 100d);
+            tree.insert(points[i]);
+        }
+        HashSet<Point2D> expected = new HashSet<Point2D>();
+        for (Point2D p : points) {
+            expected.add(p);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < points.length; i++) {
+                Point2D p = points[rnd.nextInt(points.length)];
+                if (rnd.nextInt(4) == 0) {
+                    tree.insert(p);
+                    expected.add(p);
+                } else {
+                    tree.delete(p);
+                    expected.remove(p);
+                }
+
+                // every delete path runs through the root, so the root
+                // never holds more than the allowed share of tombstones
+                assert tree.size() == expected.size();
+                assert tree.root == null || tree.root.nodes
+                        - tree.size() <= REBUILD_FRACTION * tree.root.nodes;
+            }
+
+            for (Point2D p : points) {
+                assert tree.contains(p) == expected.contains(p);
+            }
+            assert tree.count(new RectHV(0d, 0d, 1d, 1d)) == expected.size();
+
+            HashSet<Point2D> actual = new HashSet<Point2D>();
+            for (Point2D p : tree.range(new RectHV(0d, 0d, 0.5d, 1d))) {
+                assert actual.add(p);
+            }
+            for (Point2D p : expected) {
+                assert actual.contains(p) == (p.x() <= 0.5d);
+            }
+
+            for (int i = 0; i < 100 && !expected.isEmpty(); i++) {
+                Point2D query = new Point2D(rnd.nextDouble(),
+                        rnd.nextDouble());
+                double best = Double.POSITIVE_INFINITY;
+                for (Point2D p : expected) {
+                    best = Math.min(best, query.distanceSquaredTo(p));
+                }
+                assert tree.nearest(query).distanceSquaredTo(query) == best;
+            }
+        }
+
+        for (Point2D p : points) {
+            tree.delete(p);
+        }
+        assert tree.isEmpty();
+        assert tree.nearest(new Point2D(0.5d, 0.5d)) == null;
+        assert !tree.range(new RectHV(0d, 0d, 1d, 1d)).iterator().hasNext();
+    }
+
+    private static void testNearestAll() {
+        System.out.println("testNearestAll");
+
+        KdTree tree = new KdTree();
+        Point2D[] queries = new Point2D[20000];
+        Random rnd = new Random(19);
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+        }
+        for (Point2D p : tree.nearestAll(queries)) {
+            assert p == null;
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            tree.insert(new Point2D(rnd.nextDouble(), rnd.nextDouble()));
+        }
+        // repeated queries and queries outside the unit square
+        queries[1] = queries[0];
+        queries[2] = new Point2D(-3d, 7d);
+
+        Point2D[] nearest = tree.nearestAll(queries);
+        assert nearest.length == queries.length;
+        for (int i = 0; i < queries.length; i++) {
+            assert nearest[i].distanceSquaredTo(queries[i]) == tree
+                    .nearest(queries[i]).distanceSquaredTo(queries[i]);
+        }
+        assert tree.nearestAll(new Point2D[0]).length == 0;
+    }
+
+    private static void testRangeVisitorAndCount() {
+        System.out.println("testRangeVisitorAndCount");
+
+        Random rnd = new Random(7);
+        Point2D[] points = new Point2D[5000];
+        KdTree inserted = new KdTree();
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextInt(200) / 200d,
+                    rnd.nextInt(200) / 200d);
+            inserted.insert(points[i]);
+        }
+        KdTree balanced = new KdTree(points);
+
+        for (KdTree tree : new KdTree[] { inserted, balanced }) {
+            assert tree.count(new RectHV(0d, 0d, 1d, 1d)) == tree.size();
+
+            for (int i = 0; i < 200; i++) {
+                double x = rnd.nextDouble();
+                double y = rnd.nextDouble();
+                RectHV rect = new RectHV(x, y, Math.min(1d, x + 0.3d),
+                        Math.min(1d, y + 0.3d));
+
+                final HashSet<Point2D> visited = new HashSet<Point2D>();
+                tree.range(rect, new Consumer<Point2D>() {
+                    @Override
+                    public void accept(Point2D p) {
+                        assert visited.add(p);
+                    }
+                });
+
+                HashSet<Point2D> iterated = new HashSet<Point2D>();
+                for (Point2D p : tree.lazyRange(rect)) {
+                    assert iterated.add(p);
+                }
+
+                assert visited.size() == count(tree.range(rect));
+                assert visited.equals(iterated);
+                assert tree.count(rect) == visited.size();
+            }
+        }
+
+        // stopping early leaves the rest of the tree unvisited
+        Iterator<Point2D> i = balanced.lazyRange(new RectHV(0d, 0d, 1d, 1d))
+                .iterator();
+        assert i.hasNext();
+        assert balanced.contains(i.next());
+    }
+
+    private static void testWithinRadius() {
+        System.out.println("testWithinRadius");
+
+        KdTree tree = new KdTree();
+        PointSET brute = new PointSET();
+        Random rnd = new Random(13);
+        for (int i = 0; i < 5000; i++) {
+            Point2D p = new Point2D(rnd.nextInt(100) / 100d,
+                    rnd.nextInt(100) / 100d);
+            tree.insert(p);
+            brute.insert(p);
+        }
+
+        // points exactly on the circle are included
+        Point2D center = new Point2D(0.5d, 0.5d);
+        for (Point2D p : tree.withinRadius(center, 0d)) {
+            assert p.equals(center);
+        }
+
+        double[] radii = { 0d, 0.01d, 0.05d, 0.2d, 2d };
+        for (int i = 0; i < 100; i++) {
+            center = new Point2D(rnd.nextInt(100) / 100d,
+                    rnd.nextInt(100) / 100d);
+            for (double r : radii) {
+                HashSet<Point2D> actual = new HashSet<Point2D>();
+                for (Point2D p : tree.withinRadius(center, r)) {
+                    assert actual.add(p);
+                }
+                HashSet<Point2D> expected = new HashSet<Point2D>();
+                for (Point2D p : brute.withinRadius(center, r)) {
+                    expected.add(p);
+                }
+                assert actual.equals(expected);
+            }
+        }
+    }
+
+    private static void testNearestK() {
+        System.out.println("testNearestK");
+
+        KdTree tree = new KdTree();
+        PointSET brute = new PointSET();
+        assert !tree.nearest(new Point2D(0.5d, 0.5d), 3).iterator().hasNext();
+
+        Random rnd = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            Point2D p = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            tree.insert(p);
+            brute.insert(p);
+        }
+
+        int[] ks = { 1, 2, 10, 100, 6000 };
+        for (int i = 0; i < 100; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            for (int k : ks) {
+                Iterator<Point2D> actual = tree.nearest(query, k).iterator();
+                Iterator<Point2D> expected = brute.nearest(query, k)
+                        .iterator();
+                int count = 0;
+                while (expected.hasNext()) {
+                    assert actual.hasNext();
+                    assert actual.next().distanceSquaredTo(query) == expected
+                            .next().distanceSquaredTo(query);
+                    count++;
+                }
+                assert !actual.hasNext();
+                assert count == Math.min(k, brute.size());
+            }
+        }
+    }
+
+    private static void testBulkLoad() {
+        System.out.println("testBulkLoad");
+
+        int numPoints = 50000;
+        Random rnd = new Random(17);
+        Point2D[] points = new Point2D[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            // a coarse grid gives plenty of duplicates and equal coordinates
+            points[i] = new Point2D(rnd.nextInt(300) / 300d,
+                    rnd.nextInt(300) / 300d);
+        }
+
+        KdTree tree = new KdTree(points);
+        PointSET brute = new PointSET();
+        for (Point2D p : points) {
+            brute.insert(p);
+            assert tree.contains(p);
+        }
+        assert tree.size() == brute.size();
+
+        for (int i = 0; i < 200; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            assert tree.nearest(query).distanceSquaredTo(query) == brute
+                    .nearest(query).distanceSquaredTo(query);
+
+            double x = rnd.nextDouble();
+            double y = rnd.nextDouble();
+            RectHV rect = new RectHV(x, y, Math.min(1d, x + 0.1d),
+                    Math.min(1d, y + 0.1d));
+            assert count(tree.range(rect)) == count(brute.range(rect));
+        }
+
+        // sorted input degenerates insert() but not the bulk load:
+        // the depth of a median-partitioned tree is about log2(n)
+        Point2D[] sorted = new Point2D[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            sorted[i] = new Point2D((double) i / numPoints,
+                    (double) i / numPoints);
+        }
+        tree = KdTree.bulkLoad(sorted);
+        int maxHeight = 32 - Integer.numberOfLeadingZeros(numPoints);
+        assert tree.size() == numPoints;
+        assert tree.height(tree.root) <= maxHeight;
+
+        tree = KdTree.bulkLoad(new Point2D[0]);
+        assert tree.isEmpty();
+        assert tree.nearest(new Point2D(0.5d, 0.5d)) == null;
+    }
+
+    private static void testConcurrentQueries() {
+        System.out.println("testConcurrentQueries");
+
+        int numPoints = 20000;
+        Random rnd = new Random(5);
+        final KdTree tree = new KdTree();
+        final PointSET brute = new PointSET();
+        for (int i = 0; i < numPoints; i++) {
+            Point2D p = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            tree.insert(p);
+            brute.insert(p);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rnd = new Random(seed);
+                    for (int i = 0; i < 1000; i++) {
+                        Point2D query = new Point2D(rnd.nextDouble(),
+                                rnd.nextDouble());
+                        if (tree.nearest(query).distanceSquaredTo(query) != brute
+                                .nearest(query).distanceSquaredTo(query)) {
+                            failures.incrementAndGet();
+                        }
+
+                        double x = rnd.nextDouble();
+                        double y = rnd.nextDouble();
+                        RectHV rect = new RectHV(x, y,
+                                Math.min(1d, x + 0.05d),
+                                Math.min(1d, y + 0.05d));
+                        HashSet<Point2D> actual = new HashSet<Point2D>();
+                        for (Point2D p : tree.range(rect)) {
+                            actual.add(p);
+                        }
+                        HashSet<Point2D> expected = new HashSet<Point2D>();
+                        for (Point2D p : brute.range(rect)) {
+                            expected.add(p);
+                        }
+                        if (!actual.equals(expected)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        assert failures.get() == 0;
+    }
+
+    private static int count(Iterable<Point2D> points) {
+        int count = 0;
+        for (Iterator<Point2D> i = points.iterator(); i.hasNext(); i.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void testDuplicate() {
+        System.out.println("testDuplicate");
+
+        KdTree tree = new KdTree();
+
+        double x = 0.65743d;
+        double y = 0.95637d;
+
+        tree.insert(new Point2D(x, y));
+        tree.insert(new Point2D(x, y));
+        int size = tree.size();
+        assert size == 1;
+
+        boolean isContains = tree.contains(new Point2D(x, y));
+        assert isContains;
+    }
+
+    private static void testCircle() {
+        System.out.println("testCircle");
+
+        String path = "/run/media/bert/280AC22E0AF59495/coursera/algorithms/1/assignments/5/doc/kdtree/circle10.txt";
+        KdTree kdtree = loadFile(path);
+
+        Point2D actual = kdtree.nearest(new Point2D(0.81d, 0.30d));
+        Point2D expected = new Point2D(0.975528d, 0.345492d);
+
+        assert expected.equals(actual);
+
+        // System.out.println(actual);
+    }
+
+    private static void testSize2() {
+        System.out.println("testSize2");
+        int numPoints = 100000;
+        int dim = 100000;
+
+        Random rnd = new Random();
+        HashSet<Point2D> set = new HashSet<Point2D>();
+
+        KdTree tree = new KdTree();
+
+        for (int i = 0; i < numPoints; i++) {
+            boolean isUnique = false;
 
             while (!isUnique) {
                 int gridX = rnd.nextInt(Integer.MAX_VALUE) % dim;
@@ -285,124 +1778,548 @@ public class KdTree {
     }
 
     private static KdTree loadFile(String filename) {
-        KdTree kdtree = new KdTree();
-        In in = new In(filename);
+        try {
+            return new KdTree(PointFileReader.read(filename).points());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read " + filename,
+                    e);
+        }
+    }
 
-        while (!in.isEmpty()) {
-            double x = in.readDouble();
-            double y = in.readDouble();
-            Point2D p = new Point2D(x, y);
-            kdtree.insert(p);
+    // builds a balanced subtree from the nodes in a[lo, hi), which hold
+    // unique points, by splitting around the median of the current axis
+    private static Node build(Node[] a, int lo, int hi, RectHV rect,
+            boolean isVertDiv) {
+        if (lo >= hi) {
+            return null;
         }
-        return kdtree;
+
+        int mid = new Partition(a, isVertDiv).median(lo, hi);
+
+        // points sharing the median key may leave the split uneven, and
+        // no rebuild can do better until the subtree has doubled
+        Node node = a[mid];
+        node.skewed = mid < lo + (hi - lo) / 2 ? hi - lo : 0;
+        node.rect = rect;
+        node.lb = build(a, lo, mid, lbRect(node, isVertDiv), !isVertDiv);
+        node.rt = build(a, mid + 1, hi, rtRect(node, isVertDiv), !isVertDiv);
+        node.size = hi - lo;
+        node.nodes = hi - lo;
+        summarize(node);
+        return node;
     }
 
-    private void nearest(Node parent, boolean isVertDiv) {
-        if (parent == null) {
-            return;
+    private static double key(Node x, boolean isVertDiv) {
+        return isVertDiv ? x.p.x() : x.p.y();
+    }
+
+    // the rectangle of the left/bottom child of x
+    private static RectHV lbRect(Node x, boolean isVertDiv) {
+        if (isVertDiv) {
+            // on the left of the vertical division
+            return new RectHV(x.rect.xmin(), x.rect.ymin(), x.p.x(),
+                    x.rect.ymax());
         }
+        // on the bottom of the horizontal division
+        return new RectHV(x.rect.xmin(), x.rect.ymin(), x.rect.xmax(),
+                x.p.y());
+    }
 
-        Point2D query = queryPoint.get();
-        double distBest = distanceBest.get();
+    // the rectangle of the right/top child of x
+    private static RectHV rtRect(Node x, boolean isVertDiv) {
+        if (isVertDiv) {
+            // on the right of the vertical division
+            return new RectHV(x.p.x(), x.rect.ymin(), x.rect.xmax(),
+                    x.rect.ymax());
+        }
+        // on the top of the horizontal division
+        return new RectHV(x.rect.xmin(), x.p.y(), x.rect.xmax(),
+                x.rect.ymax());
+    }
 
-        // if the closest point discovered so far
-        // is closer than the distance between
-        // the query point and the rectangle
-        // corresponding to a node,
-        // there is no need to explore that node
-        // (or its subtrees).
-        // the closest point found while exploring
-        // the previous subtree may enable pruning
-        // of the next subtree.
-        if (parent.rect.distanceSquaredTo(query) > distBest) {
+    // extends the domain to take in p, by at least its width or height on
+    // each side that has to move so that a series of points walking away
+    // from it only grows it O(log distance) times, then fixes the
+    // rectangles of the nodes on its border
+    private void grow(Point2D p) {
+        if (domain.contains(p)) {
             return;
         }
 
-        double distNow = query.distanceSquaredTo(parent.p);
+        double width = domain.xmax() - domain.xmin();
+        double height = domain.ymax() - domain.ymin();
+        double xmin = domain.xmin();
+        double ymin = domain.ymin();
+        double xmax = domain.xmax();
+        double ymax = domain.ymax();
+        if (p.x() < xmin) {
+            xmin = Math.max(Math.min(xmin - width, p.x()), -Double.MAX_VALUE);
+        }
+        if (p.x() > xmax) {
+            xmax = Math.min(Math.max(xmax + width, p.x()), Double.MAX_VALUE);
+        }
+        if (p.y() < ymin) {
+            ymin = Math.max(Math.min(ymin - height, p.y()), -Double.MAX_VALUE);
+        }
+        if (p.y() > ymax) {
+            ymax = Math.min(Math.max(ymax + height, p.y()), Double.MAX_VALUE);
+        }
 
-        if (distNow < distBest) {
-            distanceBest.set(distNow);
-            closestSoFar.set(parent.p);
+        domain = new RectHV(xmin, ymin, xmax, ymax);
+        if (root != null) {
+            root.rect = domain;
+            reshape(root, true);
         }
+    }
 
-        // first, go towards query point
-        // choose the subtree that is on
-        // the same side of the splitting line
-        // as the query point as the first subtree to explore
-        Node first = parent.lb;
-        Node second = parent.rt;
-        if (isVertDiv) {
-            if (query.x() > parent.p.x()) {
-                // query point on right on vertical division => go right first
-                first = parent.rt;
-                second = parent.lb;
+    // recomputes the rectangles below x after its own has changed; stops
+    // at subtrees away from the border, whose rectangles stay the same
+    private static void reshape(Node x, boolean isVertDiv) {
+        if (x.lb != null) {
+            RectHV rect = lbRect(x, isVertDiv);
+            if (!rect.equals(x.lb.rect)) {
+                x.lb.rect = rect;
+                reshape(x.lb, !isVertDiv);
             }
-        } else {
-            if (query.y() > parent.p.y()) {
-                // query point on top of horizontal division => go top first
-                first = parent.rt;
-                second = parent.lb;
+        }
+        if (x.rt != null) {
+            RectHV rect = rtRect(x, isVertDiv);
+            if (!rect.equals(x.rt.rect)) {
+                x.rt.rect = rect;
+                reshape(x.rt, !isVertDiv);
             }
         }
-
-        nearest(first, !isVertDiv);
-        nearest(second, !isVertDiv);
-
     }
 
-    private void range(Node parent, boolean isVertDiv) {
-        if (parent == null) {
-            return;
+    // marks the node holding point as deleted; false if there is none
+    private boolean delete(Node x, Point2D point, boolean isVertDiv) {
+        if (x == null) {
+            return false;
         }
 
-        RectHV query = queryRect.get();
-        if (query.intersects(parent.rect)) {
-            if (query.contains(parent.p)) {
-                rangePoints.get().add(parent.p);
-            }
-            range(parent.lb, !isVertDiv);
-            range(parent.rt, !isVertDiv);
+        boolean isDeleted;
+        if (x.p.equals(point)) {
+            isDeleted = !x.deleted;
+            x.deleted = true;
+        } else if (key(point, isVertDiv) < key(x, isVertDiv)) {
+            isDeleted = delete(x.lb, point, !isVertDiv);
+        } else {
+            isDeleted = delete(x.rt, point, !isVertDiv);
         }
 
+        if (isDeleted) {
+            x.size--;
+            summarize(x);
+        }
+        return isDeleted;
     }
 
-    private void draw(Node x, boolean isVertDiv) {
+    // rebuilds the highest subtree on the path to point that holds too
+    // many deleted nodes or has grown too lopsided (a scapegoat);
+    // with depth O(log n) this keeps inserts at amortized O(log^2 n).
+    // A subtree that build() could only split unevenly because of equal
+    // keys is not rebuilt for being lopsided until it has doubled, which
+    // keeps that bound for duplicate coordinates
+    private Node rebalance(Node x, Point2D point, boolean isVertDiv) {
         if (x == null) {
-            return;
+            return null;
         }
 
-        StdDraw.setPenColor(StdDraw.BLACK);
-        StdDraw.setPenRadius(.01);
-        x.p.draw();
+        if (x.nodes - x.size > rebuildFraction * x.nodes
+                || (Math.max(nodes(x.lb), nodes(x.rt)) > balanceFactor
+                        * x.nodes && x.nodes >= 2 * x.skewed)) {
+            rebuilt += x.nodes;
+            return rebuild(x, isVertDiv);
+        }
 
-        if (isVertDiv) {
-            StdDraw.setPenRadius();
-            StdDraw.setPenColor(StdDraw.RED);
-            StdDraw.line(x.p.x(), x.rect.ymin(), x.p.x(), x.rect.ymax());
+        if (x.p.equals(point)) {
+            return x;
+        }
+        if (key(point, isVertDiv) < key(x, isVertDiv)) {
+            x.lb = rebalance(x.lb, point, !isVertDiv);
         } else {
-            StdDraw.setPenRadius();
-            StdDraw.setPenColor(StdDraw.BLUE);
-            StdDraw.line(x.rect.xmin(), x.p.y(), x.rect.xmax(), x.p.y());
+            x.rt = rebalance(x.rt, point, !isVertDiv);
         }
+        x.nodes = 1 + nodes(x.lb) + nodes(x.rt);
+        return x;
+    }
 
-        draw(x.lb, !isVertDiv);
-        draw(x.rt, !isVertDiv);
+    // a balanced subtree over the same region holding only the points
+    // of x that are not deleted; the nodes themselves are reused
+    private static Node rebuild(Node x, boolean isVertDiv) {
+        Node[] live = new Node[x.size];
+        collect(x, live, 0);
+        return build(live, 0, live.length, x.rect, isVertDiv);
+    }
 
+    // copies the nodes of x that are not deleted into a from index i on;
+    // returns the index after the last one copied
+    private static int collect(Node x, Node[] a, int i) {
+        if (x == null) {
+            return i;
+        }
+        i = collect(x.lb, a, i);
+        if (!x.deleted) {
+            a[i++] = x;
+        }
+        return collect(x.rt, a, i);
     }
 
-    private Node insert(Node parent, Point2D point, boolean isVertDiv) {
+    private static double key(Point2D p, boolean isVertDiv) {
+        return isVertDiv ? p.x() : p.y();
+    }
 
-        if (parent == null) {
+    private int height(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return 1 + Math.max(height(x.lb), height(x.rt));
+    }
+
+    private void nearest(Node parent, Point2D query, int k,
+            PriorityQueue<Point2D> best) {
+        if (parent == null) {
+            return;
+        }
+
+        // same pruning as the single nearest neighbor search,
+        // against the k-th best distance once there are k candidates
+        if (best.size() == k && parent.rect.distanceSquaredTo(query) > best
+                .peek().distanceSquaredTo(query)) {
+            return;
+        }
+
+        if (parent.deleted) {
+            // not a candidate, but its subtrees may hold some
+        } else if (best.size() < k) {
+            best.add(parent.p);
+        } else if (query.distanceSquaredTo(parent.p) < best.peek()
+                .distanceSquaredTo(query)) {
+            best.poll();
+            best.add(parent.p);
+        }
+
+        // go towards the query point first
+        Node first = parent.lb;
+        Node second = parent.rt;
+        if (parent.lb != null && parent.rt != null && parent.rt.rect
+                .distanceSquaredTo(query) < parent.lb.rect
+                .distanceSquaredTo(query)) {
+            first = parent.rt;
+            second = parent.lb;
+        }
+
+        nearest(first, query, k, best);
+        nearest(second, query, k, best);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // spreads the low 16 bits of v over the even bits of the result
+    private static long interleave(int v) {
+        long x = v & 0xffffL;
+        x = (x | x << 8) & 0x00ff00ffL;
+        x = (x | x << 4) & 0x0f0f0f0fL;
+        x = (x | x << 2) & 0x33333333L;
+        x = (x | x << 1) & 0x55555555L;
+        return x;
+    }
+
+    private void withinRadius(Node parent, Point2D center, double r2,
+            ArrayList<Point2D> points) {
+        if (parent == null) {
+            return;
+        }
+
+        // compare squared distances, no need for a square root
+        if (parent.rect.distanceSquaredTo(center) > r2) {
+            return;
+        }
+
+        if (!parent.deleted && center.distanceSquaredTo(parent.p) <= r2) {
+            points.add(parent.p);
+        }
+        withinRadius(parent.lb, center, r2, points);
+        withinRadius(parent.rt, center, r2, points);
+    }
+
+    // orders points by decreasing distance to the query point
+    private static Comparator<Point2D> farthestFirst(final Point2D query) {
+        return new Comparator<Point2D>() {
+            @Override
+            public int compare(Point2D a, Point2D b) {
+                return Double.compare(b.distanceSquaredTo(query),
+                        a.distanceSquaredTo(query));
+            }
+        };
+    }
+
+    private void range(Node parent, boolean isVertDiv, RectHV query,
+            Consumer<? super Point2D> action) {
+        if (parent == null) {
+            return;
+        }
+
+        if (query.intersects(parent.rect)) {
+            if (!parent.deleted && query.contains(parent.p)) {
+                action.accept(parent.p);
+            }
+            range(parent.lb, !isVertDiv, query, action);
+            range(parent.rt, !isVertDiv, query, action);
+        }
+
+    }
+
+    // range() while collecting statistics: counts[0] gets the nodes
+    // visited, counts[1] the subtrees pruned and counts[2] the points
+    // found
+    private void range(Node parent, RectHV query,
+            Consumer<? super Point2D> action, long[] counts) {
+        if (parent == null) {
+            return;
+        }
+
+        if (query.intersects(parent.rect)) {
+            counts[0]++;
+            if (!parent.deleted && query.contains(parent.p)) {
+                counts[2]++;
+                action.accept(parent.p);
+            }
+            range(parent.lb, query, action, counts);
+            range(parent.rt, query, action, counts);
+        } else {
+            counts[1]++;
+        }
+    }
+
+    private int count(Node parent, RectHV query) {
+        if (parent == null || !query.intersects(parent.rect)) {
+            return 0;
+        }
+
+        // every point of a subtree whose rectangle lies inside the query
+        // is inside the query
+        if (contains(query, parent.rect)) {
+            return parent.size;
+        }
+
+        int count = !parent.deleted && query.contains(parent.p) ? 1 : 0;
+        return count + count(parent.lb, query) + count(parent.rt, query);
+    }
+
+    // adds the count, x and y sums and weight of the points of parent
+    // inside the query to sums[0] to sums[3]
+    private void aggregate(Node parent, RectHV query, double[] sums) {
+        if (parent == null || !query.intersects(parent.rect)) {
+            return;
+        }
+
+        Summary summary = parent.summary;
+        if (summary != null && contains(query, parent.rect)) {
+            sums[0] += parent.size;
+            sums[1] += summary.sumX;
+            sums[2] += summary.sumY;
+            sums[3] += summary.sumWeight;
+            return;
+        }
+
+        if (!parent.deleted && query.contains(parent.p)) {
+            sums[0]++;
+            sums[1] += parent.p.x();
+            sums[2] += parent.p.y();
+            sums[3] += summary == null ? 1d : summary.weight;
+        }
+        aggregate(parent.lb, query, sums);
+        aggregate(parent.rt, query, sums);
+    }
+
+    // gives every node below x a summary of its subtree, or takes it away
+    private static void summarizeAll(Node x, boolean enabled) {
+        if (x == null) {
+            return;
+        }
+        summarizeAll(x.lb, enabled);
+        summarizeAll(x.rt, enabled);
+        if (enabled) {
+            x.summary = new Summary(1d);
+            summarize(x);
+        } else {
+            x.summary = null;
+        }
+    }
+
+    // recomputes the sums of x from its own point and its children
+    private static void summarize(Node x) {
+        Summary summary = x.summary;
+        if (summary == null) {
+            return;
+        }
+
+        summary.sumX = 0d;
+        summary.sumY = 0d;
+        summary.sumWeight = 0d;
+        if (!x.deleted) {
+            summary.sumX = x.p.x();
+            summary.sumY = x.p.y();
+            summary.sumWeight = summary.weight;
+        }
+        if (x.lb != null) {
+            summary.sumX += x.lb.summary.sumX;
+            summary.sumY += x.lb.summary.sumY;
+            summary.sumWeight += x.lb.summary.sumWeight;
+        }
+        if (x.rt != null) {
+            summary.sumX += x.rt.summary.sumX;
+            summary.sumY += x.rt.summary.sumY;
+            summary.sumWeight += x.rt.summary.sumWeight;
+        }
+    }
+
+    // passes every pair of a point below a and a point below b at most
+    // sqrt(d2) apart to the action; walks both trees at once, splitting
+    // the side with more nodes, and skips the pairs of subtrees whose
+    // rectangles are further apart
+    private static void join(Node a, Node b, double d2,
+            BiConsumer<? super Point2D, ? super Point2D> action) {
+        if (!isJoinable(a, b, d2)) {
+            return;
+        }
+
+        if (a.nodes >= b.nodes) {
+            if (!a.deleted) {
+                joinPoint(a.p, b, d2, true, action);
+            }
+            join(a.lb, b, d2, action);
+            join(a.rt, b, d2, action);
+        } else {
+            if (!b.deleted) {
+                joinPoint(b.p, a, d2, false, action);
+            }
+            join(a, b.lb, d2, action);
+            join(a, b.rt, d2, action);
+        }
+    }
+
+    // can a point below a and a point below b be at most sqrt(d2) apart?
+    private static boolean isJoinable(Node a, Node b, double d2) {
+        if (a == null || b == null || a.size == 0 || b.size == 0) {
+            return false;
+        }
+
+        double dx = Math.max(0d, Math.max(a.rect.xmin() - b.rect.xmax(),
+                b.rect.xmin() - a.rect.xmax()));
+        double dy = Math.max(0d, Math.max(a.rect.ymin() - b.rect.ymax(),
+                b.rect.ymin() - a.rect.ymax()));
+        return dx * dx + dy * dy <= d2;
+    }
+
+    // passes p paired with every point below x at most sqrt(d2) away to
+    // the action, p first if isFirst
+    private static void joinPoint(Point2D p, Node x, double d2,
+            boolean isFirst,
+            BiConsumer<? super Point2D, ? super Point2D> action) {
+        if (x == null || x.size == 0 || x.rect.distanceSquaredTo(p) > d2) {
+            return;
+        }
+
+        if (!x.deleted && p.distanceSquaredTo(x.p) <= d2) {
+            if (isFirst) {
+                action.accept(p, x.p);
+            } else {
+                action.accept(x.p, p);
+            }
+        }
+        joinPoint(p, x.lb, d2, isFirst, action);
+        joinPoint(p, x.rt, d2, isFirst, action);
+    }
+
+    // is inner entirely inside outer?
+    private static boolean contains(RectHV outer, RectHV inner) {
+        return outer.xmin() <= inner.xmin() && outer.xmax() >= inner.xmax()
+                && outer.ymin() <= inner.ymin()
+                && outer.ymax() >= inner.ymax();
+    }
+
+    private static int size(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return x.size;
+    }
+
+    private static int nodes(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return x.nodes;
+    }
+
+    private void draw(Node x, boolean isVertDiv) {
+        if (x == null) {
+            return;
+        }
+
+        if (!x.deleted) {
+            StdDraw.setPenColor(StdDraw.BLACK);
+            StdDraw.setPenRadius(.01);
+            x.p.draw();
+        }
+
+        if (isVertDiv) {
+            StdDraw.setPenRadius();
+            StdDraw.setPenColor(StdDraw.RED);
+            StdDraw.line(x.p.x(), x.rect.ymin(), x.p.x(), x.rect.ymax());
+        } else {
+            StdDraw.setPenRadius();
+            StdDraw.setPenColor(StdDraw.BLUE);
+            StdDraw.line(x.rect.xmin(), x.p.y(), x.rect.xmax(), x.p.y());
+        }
+
+        draw(x.lb, !isVertDiv);
+        draw(x.rt, !isVertDiv);
+
+    }
+
+    private Node insert(Node parent, Point2D point, double weight,
+            boolean isVertDiv) {
+
+        if (parent == null) {
             Node newNode = new Node();
             newNode.p = point;
-            newNode.rect = new RectHV(0d, 0d, 1d, 1d);
+            newNode.rect = domain;
             newNode.lb = null;
             newNode.rt = null;
+            newNode.size = 1;
+            newNode.nodes = 1;
+            if (isAggregating) {
+                newNode.summary = new Summary(Double.isNaN(weight) ? 1d
+                        : weight);
+                summarize(newNode);
+            }
             size++;
             return newNode;
         }
 
         if (parent.p.equals(point)) {
+            if (parent.summary != null && !Double.isNaN(weight)) {
+                parent.summary.weight = weight;
+            } else if (parent.summary != null && parent.deleted) {
+                parent.summary.weight = 1d;
+            }
+            if (parent.deleted) {
+                // bring the point back in place of its tombstone
+                parent.deleted = false;
+                parent.size++;
+                size++;
+            }
+            summarize(parent);
             return parent;
         }
 
@@ -416,45 +2333,23 @@ public class KdTree {
         if (cmp1 < cmp2) {
             // left or bottom
             boolean isLBNull = parent.lb == null;
-            parent.lb = insert(parent.lb, point, !isVertDiv);
+            parent.lb = insert(parent.lb, point, weight, !isVertDiv);
             if (isLBNull) {
-                if (isVertDiv) {
-                    // parent is vertical division
-                    // on the left of the vertical division
-                    parent.lb.rect = new RectHV(parent.rect.xmin(),
-                            parent.rect.ymin(), parent.p.x(),
-                            parent.rect.ymax());
-                } else {
-                    // parent is horizontal division
-                    // on the bottom of the horizontal division
-                    parent.lb.rect = new RectHV(parent.rect.xmin(),
-                            parent.rect.ymin(), parent.rect.xmax(),
-                            parent.p.y());
-                }
-                // System.out.println(parent.lb.rect);
+                parent.lb.rect = lbRect(parent, isVertDiv);
             }
         } else if (cmp1 >= cmp2) {
             boolean isRTNull = parent.rt == null;
-            parent.rt = insert(parent.rt, point, !isVertDiv);
+            parent.rt = insert(parent.rt, point, weight, !isVertDiv);
 
             if (isRTNull) {
-                if (isVertDiv) {
-                    // parent is vertical division
-                    // on the right of the vertical division
-                    parent.rt.rect = new RectHV(parent.p.x(),
-                            parent.rect.ymin(), parent.rect.xmax(),
-                            parent.rect.ymax());
-                } else {
-                    // parent is horizontal division
-                    // on the top of the horizontal division
-                    parent.rt.rect = new RectHV(parent.rect.xmin(),
-                            parent.p.y(), parent.rect.xmax(),
-                            parent.rect.ymax());
-                }
-                // System.out.println(parent.rt.rect);
+                parent.rt.rect = rtRect(parent, isVertDiv);
             }
         }
 
+        parent.size = (parent.deleted ? 0 : 1) + size(parent.lb)
+                + size(parent.rt);
+        parent.nodes = 1 + nodes(parent.lb) + nodes(parent.rt);
+        summarize(parent);
         return parent;
     }
 
@@ -465,7 +2360,7 @@ public class KdTree {
         }
 
         if (x.p.equals(point)) {
-            return true;
+            return !x.deleted;
         }
 
         double cmp1 = point.x();
@@ -483,6 +2378,434 @@ public class KdTree {
 
     }
 
+    // the number, coordinate sums and total weight of a set of points
+    public static final class Aggregate {
+        private final int count;
+        private final double sumX;
+        private final double sumY;
+        private final double weight;
+
+        private Aggregate(int count, double sumX, double sumY,
+                double weight) {
+            this.count = count;
+            this.sumX = sumX;
+            this.sumY = sumY;
+            this.weight = weight;
+        }
+
+        // the number of points
+        public int count() {
+            return count;
+        }
+
+        // the sum of their x-coordinates
+        public double sumX() {
+            return sumX;
+        }
+
+        // the sum of their y-coordinates
+        public double sumY() {
+            return sumY;
+        }
+
+        // the sum of their weights
+        public double weight() {
+            return weight;
+        }
+
+        // the mean of the points; null if there are none
+        public Point2D centroid() {
+            if (count == 0) {
+                return null;
+            }
+            return new Point2D(sumX / count, sumY / count);
+        }
+    }
+
+    // the answer of an approximate nearest neighbor search
+    public static final class NearestResult {
+        private final Point2D point;
+        private final int nodesVisited;
+        private final boolean isComplete;
+
+        private NearestResult(Point2D point, int nodesVisited,
+                boolean isComplete) {
+            this.point = point;
+            this.nodesVisited = nodesVisited;
+            this.isComplete = isComplete;
+        }
+
+        // the point found; null if the set is empty
+        public Point2D point() {
+            return point;
+        }
+
+        // number of nodes the search looked at
+        public int nodesVisited() {
+            return nodesVisited;
+        }
+
+        // did the search finish within its budget? only then is the
+        // point within (1 + epsilon) of the nearest distance
+        public boolean isComplete() {
+            return isComplete;
+        }
+    }
+
+    // the tree as flat arrays in van Emde Boas order: node 0 is the root,
+    // node i holds points[i] (also in xs[i], ys[i] for the searches) and
+    // its children lb[i], rt[i]; rectangles are derived on the way down
+    private static final class Frozen {
+        private static final int NIL = -1;
+
+        private final double[] xs;
+        private final double[] ys;
+        private final int[] lb;
+        private final int[] rt;
+        private final boolean[] deleted;
+        private final Point2D[] points;
+        private final RectHV domain;
+
+        private Frozen(Node root, int height, RectHV domain) {
+            int n = nodes(root);
+            Node[] order = new Node[n];
+            layout(root, height, order, 0);
+
+            IdentityHashMap<Node, Integer> index =
+                    new IdentityHashMap<Node, Integer>(n);
+            for (int i = 0; i < n; i++) {
+                index.put(order[i], i);
+            }
+
+            xs = new double[n];
+            ys = new double[n];
+            lb = new int[n];
+            rt = new int[n];
+            deleted = new boolean[n];
+            points = new Point2D[n];
+            for (int i = 0; i < n; i++) {
+                Node x = order[i];
+                xs[i] = x.p.x();
+                ys[i] = x.p.y();
+                lb[i] = x.lb == null ? NIL : index.get(x.lb);
+                rt[i] = x.rt == null ? NIL : index.get(x.rt);
+                deleted[i] = x.deleted;
+                points[i] = x.p;
+            }
+            this.domain = domain;
+        }
+
+        // puts the top height levels of the subtree x into order from
+        // index i on: first the top half of them, recursively, then each
+        // subtree below it from left to right; returns the next index
+        private static int layout(Node x, int height, Node[] order, int i) {
+            if (x == null) {
+                return i;
+            }
+            if (height == 1) {
+                order[i] = x;
+                return i + 1;
+            }
+
+            int top = height / 2;
+            i = layout(x, top, order, i);
+            return layoutBelow(x, top, height - top, order, i);
+        }
+
+        // lays out the subtrees depth levels below x, height levels each
+        private static int layoutBelow(Node x, int depth, int height,
+                Node[] order, int i) {
+            if (x == null) {
+                return i;
+            }
+            if (depth == 0) {
+                return layout(x, height, order, i);
+            }
+            i = layoutBelow(x.lb, depth - 1, height, order, i);
+            return layoutBelow(x.rt, depth - 1, height, order, i);
+        }
+
+        private boolean contains(double x, double y) {
+            int node = xs.length == 0 ? NIL : 0;
+            boolean isVertDiv = true;
+            while (node != NIL) {
+                if (xs[node] == x && ys[node] == y) {
+                    return !deleted[node];
+                }
+                boolean isLB = isVertDiv ? x < xs[node] : y < ys[node];
+                node = isLB ? lb[node] : rt[node];
+                isVertDiv = !isVertDiv;
+            }
+            return false;
+        }
+
+        // the point closest to (qx, qy) that is not deleted, or null if
+        // there is none; scale and budget prune and stop the search as in
+        // NearestSearch, which also leaves its counts in search
+        private Point2D nearest(double qx, double qy, double scale,
+                int budget, FrozenSearch search) {
+            search.qx = qx;
+            search.qy = qy;
+            search.scale = scale;
+            search.budget = budget;
+            search.best = NIL;
+            search.distBest = Double.POSITIVE_INFINITY;
+            search.visited = 0;
+            search.pruned = 0;
+            search.isComplete = true;
+            if (xs.length > 0) {
+                nearest(0, true, domain.xmin(), domain.ymin(), domain.xmax(),
+                        domain.ymax(), search);
+            }
+            return search.best == NIL ? null : points[search.best];
+        }
+
+        // offers the nodes of the subtree that are not deleted to the
+        // search; the subtree lies within [xmin, xmax] x [ymin, ymax]
+        private void nearest(int node, boolean isVertDiv, double xmin,
+                double ymin, double xmax, double ymax, FrozenSearch search) {
+            if (node == NIL || !search.isComplete) {
+                return;
+            }
+
+            // prune subtrees whose rectangle is farther away than the best
+            double qx = search.qx;
+            double qy = search.qy;
+            double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+            double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+            if ((dx * dx + dy * dy) * search.scale > search.distBest) {
+                search.pruned++;
+                return;
+            }
+            if (search.visited >= search.budget && search.best != NIL) {
+                // out of budget: drop the rest of the search
+                search.isComplete = false;
+                return;
+            }
+            search.visited++;
+
+            double x = xs[node];
+            double y = ys[node];
+            double distNow = (x - qx) * (x - qx) + (y - qy) * (y - qy);
+            if (distNow < search.distBest && !deleted[node]) {
+                search.best = node;
+                search.distBest = distNow;
+            }
+
+            // go towards the query point first
+            int left = lb[node];
+            int right = rt[node];
+            if (isVertDiv) {
+                if (qx < x) {
+                    nearest(left, false, xmin, ymin, x, ymax, search);
+                    nearest(right, false, x, ymin, xmax, ymax, search);
+                } else {
+                    nearest(right, false, x, ymin, xmax, ymax, search);
+                    nearest(left, false, xmin, ymin, x, ymax, search);
+                }
+            } else {
+                if (qy < y) {
+                    nearest(left, true, xmin, ymin, xmax, y, search);
+                    nearest(right, true, xmin, y, xmax, ymax, search);
+                } else {
+                    nearest(right, true, xmin, y, xmax, ymax, search);
+                    nearest(left, true, xmin, ymin, xmax, y, search);
+                }
+            }
+        }
+
+        // counts, unless null, gets the nodes visited, the subtrees
+        // pruned and the points found, as in KdTree.range()
+        private void range(RectHV rect, Consumer<? super Point2D> action,
+                long[] counts) {
+            if (xs.length > 0) {
+                range(0, true, rect, action, counts);
+            }
+        }
+
+        private void range(int node, boolean isVertDiv, RectHV rect,
+                Consumer<? super Point2D> action, long[] counts) {
+            if (node == NIL) {
+                return;
+            }
+
+            double x = xs[node];
+            double y = ys[node];
+            if (counts != null) {
+                counts[0]++;
+            }
+            if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin()
+                    && y <= rect.ymax() && !deleted[node]) {
+                if (counts != null) {
+                    counts[2]++;
+                }
+                action.accept(points[node]);
+            }
+
+            // the left/bottom subtree only holds keys below the split,
+            // the right/top subtree keys at or above it
+            double split = isVertDiv ? x : y;
+            double min = isVertDiv ? rect.xmin() : rect.ymin();
+            double max = isVertDiv ? rect.xmax() : rect.ymax();
+            if (min < split) {
+                range(lb[node], !isVertDiv, rect, action, counts);
+            } else if (counts != null && lb[node] != NIL) {
+                counts[1]++;
+            }
+            if (max >= split) {
+                range(rt[node], !isVertDiv, rect, action, counts);
+            } else if (counts != null && rt[node] != NIL) {
+                counts[1]++;
+            }
+        }
+    }
+
+    // the state of one nearest neighbor search of a frozen copy: the
+    // query, the closest node so far, the pruning scale and budget of
+    // nearestApprox(), and what the search did, for it and the statistics
+    private static final class FrozenSearch {
+        private double qx;
+        private double qy;
+        private double scale;
+        private int budget;
+        private int best;
+        private double distBest;
+        private int visited;
+        private int pruned;
+        private boolean isComplete;
+    }
+
+    // the statistics of the tree as an MBean
+    private class StatsBean implements KdTreeStatsMBean {
+        @Override
+        public boolean isEnabled() {
+            return isStatsEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            setStatsEnabled(enabled);
+        }
+
+        @Override
+        public void reset() {
+            resetStats();
+        }
+
+        @Override
+        public long getNearestCount() {
+            return stats().nearest().count();
+        }
+
+        @Override
+        public double getNearestMeanNodesVisited() {
+            return stats().nearest().meanNodesVisited();
+        }
+
+        @Override
+        public long getNearestMaxNodesVisited() {
+            return stats().nearest().maxNodesVisited();
+        }
+
+        @Override
+        public long getNearestNodesPruned() {
+            return stats().nearest().nodesPruned();
+        }
+
+        @Override
+        public long getNearestDistanceComputations() {
+            return stats().nearest().distanceComputations();
+        }
+
+        @Override
+        public long getNearestLatencyP50Nanos() {
+            return stats().nearest().latencyNanos(50d);
+        }
+
+        @Override
+        public long getNearestLatencyP99Nanos() {
+            return stats().nearest().latencyNanos(99d);
+        }
+
+        @Override
+        public long getNearestLatencyP999Nanos() {
+            return stats().nearest().latencyNanos(99.9d);
+        }
+
+        @Override
+        public long getNearestLatencyMaxNanos() {
+            return stats().nearest().latencyNanos(100d);
+        }
+
+        @Override
+        public long getRangeCount() {
+            return stats().range().count();
+        }
+
+        @Override
+        public double getRangeMeanNodesVisited() {
+            return stats().range().meanNodesVisited();
+        }
+
+        @Override
+        public long getRangeMaxNodesVisited() {
+            return stats().range().maxNodesVisited();
+        }
+
+        @Override
+        public long getRangeNodesPruned() {
+            return stats().range().nodesPruned();
+        }
+
+        @Override
+        public long getRangeResults() {
+            return stats().range().results();
+        }
+
+        @Override
+        public long getRangeLatencyP50Nanos() {
+            return stats().range().latencyNanos(50d);
+        }
+
+        @Override
+        public long getRangeLatencyP99Nanos() {
+            return stats().range().latencyNanos(99d);
+        }
+
+        @Override
+        public long getRangeLatencyP999Nanos() {
+            return stats().range().latencyNanos(99.9d);
+        }
+
+        @Override
+        public long getRangeLatencyMaxNanos() {
+            return stats().range().latencyNanos(100d);
+        }
+    }
+
+    // the median split of build() over an array of nodes
+    private static final class Partition extends KdPartition {
+        private final Node[] a;
+        private final boolean isVertDiv;
+
+        private Partition(Node[] a, boolean isVertDiv) {
+            this.a = a;
+            this.isVertDiv = isVertDiv;
+        }
+
+        @Override
+        double key(int i) {
+            return KdTree.key(a[i], isVertDiv);
+        }
+
+        @Override
+        void swap(int i, int j) {
+            Node tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+    }
+
     private static class Node {
         // the point
         private Point2D p;
@@ -495,6 +2818,493 @@ public class KdTree {
 
         // the right/top subtree
         private Node rt;
+
+        // number of points in this subtree, not counting deleted ones
+        private int size;
+
+        // number of nodes in this subtree, deleted ones included
+        private int nodes;
+
+        // has the point been deleted? the node still divides the plane
+        private boolean deleted;
+
+        // the nodes of this subtree when build() split it unevenly
+        // because of points sharing the median key; 0 if it did not
+        private int skewed;
+
+        // the aggregates of this subtree; null unless they are turned on
+        private Summary summary;
+    }
+
+    // the weight of a node's point and the sums over the points of its
+    // subtree that are not deleted
+    private static final class Summary {
+        private double weight;
+        private double sumX;
+        private double sumY;
+        private double sumWeight;
+
+        private Summary(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    // an iterative nearest neighbor search over raw coordinates; the
+    // subtrees still to visit wait on a stack of nodes, split directions
+    // and lower bounds on their distance to the query point, which grows
+    // with the depth of the tree and is then reused by every query
+    private static class NearestSearch {
+        private Node[] nodes;
+        private boolean[] isVertDivs;
+        private double[] bounds;
+        private int n;
+
+        // nodes looked at and subtrees skipped by the last search, and
+        // whether it ran to the end rather than out of budget
+        private int visited;
+        private int pruned;
+        private boolean isComplete;
+
+        private NearestSearch() {
+            nodes = new Node[64];
+            isVertDivs = new boolean[64];
+            bounds = new double[64];
+            n = 0;
+        }
+
+        // the point closest to (qx, qy) that is not deleted, or seed
+        // (which may be null) if none is closer
+        private Point2D nearest(Node root, double qx, double qy,
+                Point2D seed) {
+            return nearest(root, qx, qy, seed, 1d, Integer.MAX_VALUE);
+        }
+
+        // as above, but a subtree is skipped once its rectangle is more
+        // than 1/sqrt(scale) times as far as the closest point so far,
+        // and the search stops after looking at budget nodes, or later
+        // if it has not found a point yet; sets visited and isComplete
+        private Point2D nearest(Node root, double qx, double qy,
+                Point2D seed, double scale, int budget) {
+            Point2D closestSoFar = seed;
+            double distBest = Double.POSITIVE_INFINITY;
+            if (seed != null) {
+                double dx = seed.x() - qx;
+                double dy = seed.y() - qy;
+                distBest = dx * dx + dy * dy;
+            }
+
+            visited = 0;
+            pruned = 0;
+            isComplete = true;
+            n = 0;
+            if (root != null) {
+                push(root, true, 0d);
+            }
+            while (n > 0) {
+                n--;
+                Node x = nodes[n];
+                boolean isVertDiv = isVertDivs[n];
+                nodes[n] = null;
+                if (bounds[n] * scale > distBest) {
+                    pruned++;
+                    continue;
+                }
+
+                while (x != null) {
+                    // if the closest point discovered so far is closer
+                    // than the rectangle of a node, there is no need to
+                    // explore that node (or its subtrees)
+                    RectHV rect = x.rect;
+                    double dx = qx < rect.xmin() ? rect.xmin() - qx
+                            : (qx > rect.xmax() ? qx - rect.xmax() : 0d);
+                    double dy = qy < rect.ymin() ? rect.ymin() - qy
+                            : (qy > rect.ymax() ? qy - rect.ymax() : 0d);
+                    if ((dx * dx + dy * dy) * scale > distBest) {
+                        pruned++;
+                        break;
+                    }
+
+                    if (x.size == 0) {
+                        // only deleted points below
+                        pruned++;
+                        break;
+                    }
+
+                    if (visited >= budget && closestSoFar != null) {
+                        // out of budget: drop the rest of the stack
+                        isComplete = false;
+                        Arrays.fill(nodes, 0, n, null);
+                        n = 0;
+                        break;
+                    }
+                    visited++;
+
+                    double px = x.p.x();
+                    double py = x.p.y();
+                    double distNow = (px - qx) * (px - qx) + (py - qy)
+                            * (py - qy);
+                    if (distNow < distBest && !x.deleted) {
+                        distBest = distNow;
+                        closestSoFar = x.p;
+                    }
+
+                    // go on towards the query point and leave the other
+                    // side for later, no closer than the splitting line
+                    double diff = isVertDiv ? qx - px : qy - py;
+                    Node first = x.lb;
+                    Node second = x.rt;
+                    if (diff > 0) {
+                        first = x.rt;
+                        second = x.lb;
+                    }
+                    if (second != null) {
+                        push(second, !isVertDiv, diff * diff);
+                    }
+                    x = first;
+                    isVertDiv = !isVertDiv;
+                }
+            }
+            return closestSoFar;
+        }
+
+        private void push(Node x, boolean isVertDiv, double bound) {
+            if (n == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * n);
+                isVertDivs = Arrays.copyOf(isVertDivs, 2 * n);
+                bounds = Arrays.copyOf(bounds, 2 * n);
+            }
+            nodes[n] = x;
+            isVertDivs[n] = isVertDiv;
+            bounds[n] = bound;
+            n++;
+        }
+    }
+
+    // answers the queries in order[lo, hi), forking halves until
+    // they are small enough to search sequentially
+    private class NearestAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Point2D[] queries;
+        private final long[] order;
+        private final Point2D[] nearest;
+        private final int lo;
+        private final int hi;
+
+        private NearestAllTask(Point2D[] queries, long[] order,
+                Point2D[] nearest, int lo, int hi) {
+            this.queries = queries;
+            this.order = order;
+            this.nearest = nearest;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > NEAREST_ALL_CUTOFF) {
+                int mid = lo + (hi - lo) / 2;
+                invokeAll(new NearestAllTask(queries, order, nearest, lo, mid),
+                        new NearestAllTask(queries, order, nearest, mid, hi));
+                return;
+            }
+
+            NearestSearch search = NEAREST_SEARCH.get();
+            Point2D previous = null;
+            for (int i = lo; i < hi; i++) {
+                int index = (int) (order[i] & Integer.MAX_VALUE);
+                Point2D query = queries[index];
+
+                // the answer to the previous, nearby query bounds this one
+                previous = search.nearest(root, query.x(), query.y(),
+                        previous);
+                nearest[index] = previous;
+            }
+        }
+    }
+
+    // the points of a subtree inside the query rectangle; forks a task
+    // for each big child subtree and searches small ones itself
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node x;
+        private final RectHV query;
+        private Point2D[] points;
+        private int n;
+        private RangeTask lb;
+        private RangeTask rt;
+
+        private RangeTask(Node x, RectHV query) {
+            this.x = x;
+            this.query = query;
+            this.points = new Point2D[0];
+        }
+
+        @Override
+        protected void compute() {
+            if (x.nodes <= PARALLEL_RANGE_CUTOFF) {
+                range(x, true, query, new Consumer<Point2D>() {
+                    @Override
+                    public void accept(Point2D p) {
+                        add(p);
+                    }
+                });
+                return;
+            }
+
+            if (!query.intersects(x.rect)) {
+                return;
+            }
+            if (!x.deleted && query.contains(x.p)) {
+                add(x.p);
+            }
+            if (x.lb != null) {
+                lb = new RangeTask(x.lb, query);
+            }
+            if (x.rt != null) {
+                rt = new RangeTask(x.rt, query);
+            }
+            if (lb != null && rt != null) {
+                invokeAll(lb, rt);
+            } else if (lb != null) {
+                lb.compute();
+            } else if (rt != null) {
+                rt.compute();
+            }
+        }
+
+        private void add(Point2D p) {
+            if (n == points.length) {
+                points = Arrays.copyOf(points, Math.max(16, 2 * n));
+            }
+            points[n++] = p;
+        }
+
+        // the number of points found by this task and the ones it forked
+        private int size() {
+            return n + (lb == null ? 0 : lb.size())
+                    + (rt == null ? 0 : rt.size());
+        }
+
+        // copies the points found into a from index i on; returns the
+        // index after the last one copied
+        private int copyTo(Point2D[] a, int i) {
+            System.arraycopy(points, 0, a, i, n);
+            i += n;
+            if (lb != null) {
+                i = lb.copyTo(a, i);
+            }
+            if (rt != null) {
+                i = rt.copyTo(a, i);
+            }
+            return i;
+        }
+    }
+
+    // join() of a pair of subtrees, forking the two halves of the larger
+    // one while it has more than PARALLEL_JOIN_CUTOFF nodes
+    private static class JoinTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node a;
+        private final Node b;
+        private final double d2;
+        private final BiConsumer<? super Point2D, ? super Point2D> action;
+
+        private JoinTask(Node a, Node b, double d2,
+                BiConsumer<? super Point2D, ? super Point2D> action) {
+            this.a = a;
+            this.b = b;
+            this.d2 = d2;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (Math.max(a.nodes, b.nodes) <= PARALLEL_JOIN_CUTOFF) {
+                KdTree.join(a, b, d2, action);
+                return;
+            }
+            if (!isJoinable(a, b, d2)) {
+                return;
+            }
+
+            ArrayList<JoinTask> tasks = new ArrayList<JoinTask>(2);
+            if (a.nodes >= b.nodes) {
+                if (!a.deleted) {
+                    joinPoint(a.p, b, d2, true, action);
+                }
+                if (isJoinable(a.lb, b, d2)) {
+                    tasks.add(new JoinTask(a.lb, b, d2, action));
+                }
+                if (isJoinable(a.rt, b, d2)) {
+                    tasks.add(new JoinTask(a.rt, b, d2, action));
+                }
+            } else {
+                if (!b.deleted) {
+                    joinPoint(b.p, a, d2, false, action);
+                }
+                if (isJoinable(a, b.lb, d2)) {
+                    tasks.add(new JoinTask(a, b.lb, d2, action));
+                }
+                if (isJoinable(a, b.rt, d2)) {
+                    tasks.add(new JoinTask(a, b.rt, d2, action));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    // the subtrees left to search for points inside the query rectangle;
+    // splits off the biggest one, or the children of the only one left
+    private class RangeSpliterator implements Spliterator<Point2D> {
+        private final RectHV query;
+        private final ArrayDeque<Node> stack;
+
+        // a point found while splitting, to be passed on first
+        private Point2D pending;
+
+        private RangeSpliterator(Node root, RectHV query) {
+            this.query = query;
+            this.stack = new ArrayDeque<Node>();
+            if (root != null) {
+                stack.push(root);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Point2D> action) {
+            if (pending != null) {
+                Point2D p = pending;
+                pending = null;
+                action.accept(p);
+                return true;
+            }
+
+            while (!stack.isEmpty()) {
+                Node x = stack.pop();
+                if (!query.intersects(x.rect)) {
+                    continue;
+                }
+                if (x.rt != null) {
+                    stack.push(x.rt);
+                }
+                if (x.lb != null) {
+                    stack.push(x.lb);
+                }
+                if (!x.deleted && query.contains(x.p)) {
+                    action.accept(x.p);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Point2D> action) {
+            if (pending != null) {
+                action.accept(pending);
+                pending = null;
+            }
+            while (!stack.isEmpty()) {
+                range(stack.pop(), true, query, action);
+            }
+        }
+
+        @Override
+        public Spliterator<Point2D> trySplit() {
+            // the bottom of the stack holds the subtree nearest the root
+            if (stack.size() > 1) {
+                return new RangeSpliterator(stack.pollLast(), query);
+            }
+
+            Node x = stack.peek();
+            if (x == null || x.nodes <= PARALLEL_RANGE_CUTOFF
+                    || pending != null) {
+                return null;
+            }
+            stack.pop();
+            if (!query.intersects(x.rect)) {
+                return null;
+            }
+            if (!x.deleted && query.contains(x.p)) {
+                pending = x.p;
+            }
+            if (x.lb != null) {
+                stack.push(x.lb);
+            }
+            if (x.rt == null) {
+                return null;
+            }
+            return new RangeSpliterator(x.rt, query);
+        }
+
+        // the live points left in the subtrees, inside the query or not
+        @Override
+        public long estimateSize() {
+            long size = pending == null ? 0 : 1;
+            for (Node x : stack) {
+                size += x.size;
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
+    // walks the tree with an explicit stack, finding the points inside
+    // the query rectangle as they are asked for
+    private static class RangeIterator implements Iterator<Point2D> {
+        private final RectHV query;
+        private final ArrayDeque<Node> stack;
+        private Point2D next;
+
+        private RangeIterator(Node root, RectHV query) {
+            this.query = query;
+            this.stack = new ArrayDeque<Node>();
+            if (root != null) {
+                stack.push(root);
+            }
+            this.next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Point2D next() {
+            if (next == null) {
+                throw new java.util.NoSuchElementException();
+            }
+            Point2D p = next;
+            next = advance();
+            return p;
+        }
+
+        private Point2D advance() {
+            while (!stack.isEmpty()) {
+                Node x = stack.pop();
+                if (!query.intersects(x.rect)) {
+                    continue;
+                }
+                if (x.rt != null) {
+                    stack.push(x.rt);
+                }
+                if (x.lb != null) {
+                    stack.push(x.lb);
+                }
+                if (!x.deleted && query.contains(x.p)) {
+                    return x.p;
+                }
+            }
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,71 @@
+/******************************************************************************
+ *  Compilation:  javac KdTreeChecker.java
+ *  Execution:    none
+ *  Dependencies: KdTree.java
+ *
+ *  The differential test the other 2d-trees run against KdTree: the same
+ *  points, the same queries, and the same answers. A subclass adapts a
+ *  tree to the four operations the test compares.
+ *
+ ******************************************************************************/
+
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+abstract class KdTreeChecker {
+
+    abstract int size();
+
+    abstract boolean contains(Point2D p);
+
+    abstract Point2D nearest(Point2D p);
+
+    abstract Iterable<Point2D> range(RectHV rect);
+
+    // n points on a 1000 x 1000 grid in the unit square, so that some of
+    // them share a coordinate or repeat
+    static Point2D[] points(Random rnd, int n) {
+        Point2D[] points = new Point2D[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = new Point2D(rnd.nextInt(1000) / 1000d,
+                    rnd.nextInt(1000) / 1000d);
+        }
+        return points;
+    }
+
+    // asserts that every tree, built from points, answers 500 random
+    // queries the same way a KdTree of the same points does
+    static void check(Point2D[] points, Random rnd, KdTreeChecker... trees) {
+        KdTree expected = new KdTree(points);
+        for (KdTreeChecker tree : trees) {
+            assert tree.size() == expected.size();
+        }
+
+        for (int i = 0; i < 500; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            double best = expected.nearest(query).distanceSquaredTo(query);
+            double x = rnd.nextDouble();
+            double y = rnd.nextDouble();
+            RectHV rect = new RectHV(x, y, Math.min(1d, x + 0.05d),
+                    Math.min(1d, y + 0.05d));
+            int count = 0;
+            for (Point2D p : expected.range(rect)) {
+                count++;
+            }
+
+            for (KdTreeChecker tree : trees) {
+                assert tree.nearest(query).distanceSquaredTo(query) == best;
+                assert tree.contains(points[i]);
+
+                int found = 0;
+                for (Point2D p : tree.range(rect)) {
+                    assert rect.contains(p);
+                    found++;
+                }
+                assert found == count;
+            }
+        }
+    }
+}
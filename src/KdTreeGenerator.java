@@ -1,9 +1,12 @@
 /******************************************************************************
  *  Compilation:  javac KdTreeGenerator.java
- *  Execution:    java KdTreeGenerator N
+ *  Execution:    java KdTreeGenerator N [uniform|clustered|sorted|circle]
  *  Dependencies: 
  *
  *  Creates N random points in the unit square and print to standard output.
+ *  The optional second argument picks the distribution of the points:
+ *  uniform (the default), a few Gaussian clusters, uniform but sorted by
+ *  x-coordinate, or on the circle inscribed in the unit square.
  *
  *  % java KdTreeGenerator 5
  *  0.195080 0.938777
@@ -14,17 +17,67 @@
  *
  ******************************************************************************/
 
-import edu.princeton.cs.algs4.StdRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.StdOut;
+import edu.princeton.cs.algs4.StdRandom;
 
 public class KdTreeGenerator {
 
     public static void main(String[] args) {
         int N = Integer.parseInt(args[0]);
+        if (args.length > 1) {
+            Random rnd = new Random(StdRandom.uniform(Integer.MAX_VALUE));
+            for (Point2D p : points(args[1], N, rnd)) {
+                StdOut.printf("%8.6f %8.6f\n", p.x(), p.y());
+            }
+            return;
+        }
+
         for (int i = 0; i < N; i++) {
             double x = StdRandom.uniform(0.0, 1.0);
             double y = StdRandom.uniform(0.0, 1.0);
             StdOut.printf("%8.6f %8.6f\n", x, y);
         }
     }
+
+    // N points in the unit square drawn from the named distribution
+    public static Point2D[] points(String distribution, int N, Random rnd) {
+        Point2D[] points = new Point2D[N];
+        if ("uniform".equals(distribution) || "sorted".equals(distribution)) {
+            for (int i = 0; i < N; i++) {
+                points[i] = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            }
+            if ("sorted".equals(distribution)) {
+                Arrays.sort(points, Point2D.X_ORDER);
+            }
+        } else if ("clustered".equals(distribution)) {
+            int clusters = 16;
+            double[] cx = new double[clusters];
+            double[] cy = new double[clusters];
+            for (int c = 0; c < clusters; c++) {
+                cx[c] = 0.1 + 0.8 * rnd.nextDouble();
+                cy[c] = 0.1 + 0.8 * rnd.nextDouble();
+            }
+            for (int i = 0; i < N; i++) {
+                int c = rnd.nextInt(clusters);
+                double x = cx[c] + 0.02 * rnd.nextGaussian();
+                double y = cy[c] + 0.02 * rnd.nextGaussian();
+                points[i] = new Point2D(Math.min(1.0, Math.max(0.0, x)),
+                        Math.min(1.0, Math.max(0.0, y)));
+            }
+        } else if ("circle".equals(distribution)) {
+            for (int i = 0; i < N; i++) {
+                double angle = 2 * Math.PI * rnd.nextDouble();
+                points[i] = new Point2D(0.5 + 0.5 * Math.cos(angle),
+                        0.5 + 0.5 * Math.sin(angle));
+            }
+        } else {
+            throw new IllegalArgumentException("unknown distribution: "
+                    + distribution);
+        }
+        return points;
+    }
 }
@@ -0,0 +1,588 @@
+/******************************************************************************
+ *  Compilation:  javac KdTreeK.java
+ *  Execution:    java -ea KdTreeK
+ *  Dependencies: KdPartition.java NearestHeap.java KdTreeChecker.java
+ *
+ *  A k-d tree over points with any fixed number of coordinates, for 3d
+ *  positions or short feature vectors. Points are plain double[] of
+ *  length dimensions(), stored row after row in one flat array: node i
+ *  keeps its point in coords[i * k .. i * k + k), its children in
+ *  left[i], right[i] and its split axis in axes[i].
+ *
+ *  Inserted points split on the axis after their parent's, cycling
+ *  through all of them. The bulk-load constructor instead splits every
+ *  range on the axis along which its points spread the widest, which
+ *  keeps the cells of skewed data closer to cubes. Either way the left
+ *  subtree holds keys below the split and the right subtree keys at or
+ *  above it, so the two kinds of nodes mix freely.
+ *
+ *  Nearest-neighbor searches prune a cell once its distance to the query
+ *  exceeds the best so far, as KdTree does with node rectangles. The
+ *  distance to a cell is kept up to date per axis on the way down rather
+ *  than stored, so no bounds are kept per node.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+public class KdTreeK {
+
+    private static final int NIL = -1;
+    private static final int INIT_CAPACITY = 16;
+
+    private final int k;
+    private double[] coords;
+    private int[] left;
+    private int[] right;
+    private byte[] axes;
+    private int root;
+    private int size;
+
+    // construct an empty set of points with the given number of coordinates
+    public KdTreeK(int dimensions) {
+        if (dimensions < 1 || dimensions > Byte.MAX_VALUE) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        k = dimensions;
+        coords = new double[INIT_CAPACITY * k];
+        left = new int[INIT_CAPACITY];
+        right = new int[INIT_CAPACITY];
+        axes = new byte[INIT_CAPACITY];
+        root = NIL;
+        size = 0;
+    }
+
+    // construct a balanced set of the points stored row after row in
+    // points, dimensions coordinates each (duplicates are ignored)
+    public KdTreeK(int dimensions, double[] points) {
+        this(dimensions);
+        if (points == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (points.length % k != 0) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        for (double c : points) {
+            check(c);
+        }
+
+        int n = points.length / k;
+        int capacity = Math.max(INIT_CAPACITY, n);
+        coords = Arrays.copyOf(points, capacity * k);
+        left = new int[capacity];
+        right = new int[capacity];
+        axes = new byte[capacity];
+
+        // drop duplicates so that every point ends up in exactly one node
+        new Partition(0).sort(0, n - 1);
+        for (int i = 0; i < n; i++) {
+            if (size == 0 || compare(i, size - 1) != 0) {
+                for (int d = 0; d < k; d++) {
+                    double c = coords[i * k + d];
+                    coords[size * k + d] = c == 0d ? 0d : c;
+                }
+                size++;
+            }
+        }
+
+        // the median of every range becomes the node stored at its index
+        root = build(0, size);
+    }
+
+    // number of coordinates of every point
+    public int dimensions() {
+        return k;
+    }
+
+    // is the set empty?
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of points in the set
+    public int size() {
+        return size;
+    }
+
+    // add the point to the set (if it is not already in the set)
+    public void insert(double[] p) {
+        check(p);
+
+        if (root == NIL) {
+            root = newNode(p, 0);
+            return;
+        }
+
+        int node = root;
+        while (true) {
+            if (equal(node, p)) {
+                return;
+            }
+
+            int axis = axes[node];
+            boolean isLeft = p[axis] < coords[node * k + axis];
+            int next = isLeft ? left[node] : right[node];
+            if (next == NIL) {
+                int child = newNode(p, (axis + 1) % k);
+                if (isLeft) {
+                    left[node] = child;
+                } else {
+                    right[node] = child;
+                }
+                return;
+            }
+            node = next;
+        }
+    }
+
+    // does the set contain point p?
+    public boolean contains(double[] p) {
+        check(p);
+
+        int node = root;
+        while (node != NIL) {
+            if (equal(node, p)) {
+                return true;
+            }
+            int axis = axes[node];
+            node = p[axis] < coords[node * k + axis] ? left[node]
+                    : right[node];
+        }
+        return false;
+    }
+
+    // all points p with min[i] <= p[i] <= max[i] in every coordinate
+    public Iterable<double[]> range(double[] min, double[] max) {
+        check(min);
+        check(max);
+        for (int d = 0; d < k; d++) {
+            if (min[d] > max[d]) {
+                throw new java.lang.IllegalArgumentException();
+            }
+        }
+
+        ArrayList<double[]> points = new ArrayList<double[]>();
+        range(root, min, max, points);
+        return points;
+    }
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    public double[] nearest(double[] p) {
+        check(p);
+
+        if (root == NIL) {
+            return null;
+        }
+
+        Search search = new Search(p, 1);
+        nearest(root, 0d, search);
+        return point(search.poll());
+    }
+
+    // the n points in the set closest to p, nearest first (fewer if the
+    // set is smaller)
+    public Iterable<double[]> nearest(double[] p, int n) {
+        check(p);
+        if (n < 1) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        Search search = new Search(p, Math.min(n, Math.max(size, 1)));
+        if (root != NIL) {
+            nearest(root, 0d, search);
+        }
+
+        double[][] points = new double[search.size()][];
+        for (int i = points.length - 1; i >= 0; i--) {
+            points[i] = point(search.poll());
+        }
+        return Arrays.asList(points);
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) {
+        System.out.println("Running tests...");
+        testContains();
+        testAgainstKdTree();
+        testAgainstBruteForce();
+    }
+
+    private static void testContains() {
+        System.out.println("testContains");
+        KdTreeK tree = new KdTreeK(3);
+
+        tree.insert(new double[] { 0.5d, 0.5d, 0.5d });
+        tree.insert(new double[] { 0.25d, 0.5d, 0.75d });
+        tree.insert(new double[] { 0.75d, 0.5d, 0.25d });
+        tree.insert(new double[] { 0.75d, 0.5d, 0.25d });
+        assert tree.size() == 3;
+
+        assert tree.contains(new double[] { 0.5d, 0.5d, 0.5d });
+        assert tree.contains(new double[] { 0.25d, 0.5d, 0.75d });
+        assert tree.contains(new double[] { 0.75d, 0.5d, 0.25d });
+        assert !tree.contains(new double[] { 0.75d, 0.5d, 0.5d });
+        assert !tree.contains(new double[] { 0d, 0d, 0d });
+
+        try {
+            tree.insert(new double[] { 0.5d, 0.5d });
+            assert false;
+        } catch (IllegalArgumentException e) {
+            assert tree.size() == 3;
+        }
+    }
+
+    private static void testAgainstKdTree() {
+        System.out.println("testAgainstKdTree");
+
+        Random rnd = new Random(15);
+        Point2D[] points = KdTreeChecker.points(rnd, 20000);
+        KdTreeK tree = new KdTreeK(2);
+        for (Point2D p : points) {
+            tree.insert(new double[] { p.x(), p.y() });
+        }
+        KdTreeChecker.check(points, rnd, checker(tree));
+    }
+
+    // adapts a 2-d tree to the differential test against KdTree
+    private static KdTreeChecker checker(final KdTreeK tree) {
+        return new KdTreeChecker() {
+            @Override
+            int size() {
+                return tree.size();
+            }
+
+            @Override
+            boolean contains(Point2D p) {
+                return tree.contains(new double[] { p.x(), p.y() });
+            }
+
+            @Override
+            Point2D nearest(Point2D p) {
+                double[] q = tree.nearest(new double[] { p.x(), p.y() });
+                return new Point2D(q[0], q[1]);
+            }
+
+            @Override
+            Iterable<Point2D> range(RectHV rect) {
+                ArrayList<Point2D> points = new ArrayList<Point2D>();
+                for (double[] p : tree.range(
+                        new double[] { rect.xmin(), rect.ymin() },
+                        new double[] { rect.xmax(), rect.ymax() })) {
+                    points.add(new Point2D(p[0], p[1]));
+                }
+                return points;
+            }
+        };
+    }
+
+    private static void testAgainstBruteForce() {
+        System.out.println("testAgainstBruteForce");
+
+        Random rnd = new Random(16);
+        for (int dimensions = 3; dimensions <= 8; dimensions += 5) {
+            // few distinct values per axis give duplicates and equal keys
+            int numPoints = 5000;
+            double[] points = new double[numPoints * dimensions];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = rnd.nextInt(20) / 20d;
+            }
+            KdTreeK balanced = new KdTreeK(dimensions, points);
+            KdTreeK inserted = new KdTreeK(dimensions);
+            for (int i = 0; i < numPoints; i++) {
+                inserted.insert(Arrays.copyOfRange(points, i * dimensions,
+                        (i + 1) * dimensions));
+            }
+            assert balanced.size() == inserted.size();
+
+            // the same points without duplicates, to check against
+            double[][] unique = new double[balanced.size()][];
+            int n = 0;
+            for (int i = 0; i < numPoints; i++) {
+                double[] p = Arrays.copyOfRange(points, i * dimensions,
+                        (i + 1) * dimensions);
+                if (n == 0 || !contains(unique, n, p)) {
+                    unique[n++] = p;
+                }
+            }
+            assert n == balanced.size();
+
+            for (int i = 0; i < 200; i++) {
+                double[] q = new double[dimensions];
+                double[] max = new double[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                    q[d] = rnd.nextDouble();
+                    max[d] = q[d] + 0.5d;
+                }
+
+                // the distances of all points to q in increasing order
+                double[] dists = new double[n];
+                int count = 0;
+                for (int j = 0; j < n; j++) {
+                    dists[j] = distance(unique[j], q);
+                    boolean isInside = true;
+                    for (int d = 0; d < dimensions; d++) {
+                        isInside &= unique[j][d] >= q[d]
+                                && unique[j][d] <= max[d];
+                    }
+                    if (isInside) {
+                        count++;
+                    }
+                }
+                Arrays.sort(dists);
+
+                assert distance(balanced.nearest(q), q) == dists[0];
+                assert distance(inserted.nearest(q), q) == dists[0];
+                int m = 0;
+                for (double[] p : balanced.nearest(q, 10)) {
+                    assert distance(p, q) == dists[m++];
+                }
+                assert m == 10;
+                m = 0;
+                for (double[] p : inserted.nearest(q, 10)) {
+                    assert distance(p, q) == dists[m++];
+                }
+
+                assert count(balanced.range(q, max)) == count;
+                assert count(inserted.range(q, max)) == count;
+                assert balanced.contains(unique[i]);
+                assert inserted.contains(unique[i]);
+            }
+        }
+    }
+
+    // is p among the first n points? a linear scan for the tests
+    private static boolean contains(double[][] points, int n, double[] p) {
+        for (int i = 0; i < n; i++) {
+            if (Arrays.equals(points[i], p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double distance(double[] p, double[] q) {
+        double dist = 0d;
+        for (int d = 0; d < p.length; d++) {
+            dist += (p[d] - q[d]) * (p[d] - q[d]);
+        }
+        return dist;
+    }
+
+    private static int count(Iterable<double[]> points) {
+        int count = 0;
+        for (double[] p : points) {
+            count++;
+        }
+        return count;
+    }
+
+    // throws unless p is a point of this set
+    private void check(double[] p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (p.length != k) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        for (double c : p) {
+            check(c);
+        }
+    }
+
+    // same checks as Point2D
+    private static void check(double c) {
+        if (Double.isNaN(c) || Double.isInfinite(c)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+    }
+
+    private double[] point(int node) {
+        return Arrays.copyOfRange(coords, node * k, node * k + k);
+    }
+
+    private boolean equal(int node, double[] p) {
+        for (int d = 0; d < k; d++) {
+            if (coords[node * k + d] != p[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newNode(double[] p, int axis) {
+        if (size == left.length) {
+            int capacity = 2 * size;
+            coords = Arrays.copyOf(coords, capacity * k);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            axes = Arrays.copyOf(axes, capacity);
+        }
+        // -0.0 and 0.0 are the same coordinate
+        for (int d = 0; d < k; d++) {
+            coords[size * k + d] = p[d] == 0d ? 0d : p[d];
+        }
+        left[size] = NIL;
+        right[size] = NIL;
+        axes[size] = (byte) axis;
+        return size++;
+    }
+
+    private int compare(int i, int j) {
+        for (int d = 0; d < k; d++) {
+            double a = coords[i * k + d];
+            double b = coords[j * k + d];
+            if (a < b) {
+                return -1;
+            }
+            if (a > b) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // builds a balanced subtree over the unique points in [lo, hi),
+    // splitting on the axis of widest spread; the points are permuted in
+    // place and the median of each range becomes the node at its index
+    private int build(int lo, int hi) {
+        if (lo >= hi) {
+            return NIL;
+        }
+
+        int axis = 0;
+        double widest = -1d;
+        for (int d = 0; d < k; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                min = Math.min(min, coords[i * k + d]);
+                max = Math.max(max, coords[i * k + d]);
+            }
+            if (max - min > widest) {
+                axis = d;
+                widest = max - min;
+            }
+        }
+
+        int mid = new Partition(axis).median(lo, hi);
+
+        axes[mid] = (byte) axis;
+        left[mid] = build(lo, mid);
+        right[mid] = build(mid + 1, hi);
+        return mid;
+    }
+
+    private void swap(int i, int j) {
+        for (int d = 0; d < k; d++) {
+            double c = coords[i * k + d];
+            coords[i * k + d] = coords[j * k + d];
+            coords[j * k + d] = c;
+        }
+    }
+
+    // offers every point of the subtree to the search that can beat its
+    // current bound; dist is the squared distance from the query to the
+    // cell of the subtree, whose per-axis parts are in search.offsets
+    private void nearest(int node, double dist, Search search) {
+        if (node == NIL || dist > search.bound()) {
+            return;
+        }
+
+        double[] q = search.query;
+        double distNow = 0d;
+        for (int d = 0; d < k; d++) {
+            double diff = coords[node * k + d] - q[d];
+            distNow += diff * diff;
+        }
+        search.offer(node, distNow);
+
+        // go towards the query point first
+        int axis = axes[node];
+        double diff = q[axis] - coords[node * k + axis];
+        int near = diff < 0d ? left[node] : right[node];
+        int far = diff < 0d ? right[node] : left[node];
+        nearest(near, dist, search);
+
+        // the far cell is at least |diff| away along the split axis
+        double offset = search.offsets[axis];
+        double distFar = dist - offset * offset + diff * diff;
+        if (distFar <= search.bound()) {
+            search.offsets[axis] = diff;
+            nearest(far, distFar, search);
+            search.offsets[axis] = offset;
+        }
+    }
+
+    private void range(int node, double[] min, double[] max,
+            ArrayList<double[]> points) {
+        if (node == NIL) {
+            return;
+        }
+
+        boolean isInside = true;
+        for (int d = 0; d < k && isInside; d++) {
+            double c = coords[node * k + d];
+            isInside = c >= min[d] && c <= max[d];
+        }
+        if (isInside) {
+            points.add(point(node));
+        }
+
+        // the left subtree only holds keys below the split,
+        // the right subtree keys at or above it
+        int axis = axes[node];
+        double split = coords[node * k + axis];
+        if (min[axis] < split) {
+            range(left[node], min, max, points);
+        }
+        if (max[axis] >= split) {
+            range(right[node], min, max, points);
+        }
+    }
+
+    // the state of one nearest-neighbor search: the query, the distance
+    // from it to the current cell along each axis, and the best n nodes
+    // so far
+    private static class Search extends NearestHeap {
+        private final double[] query;
+        private final double[] offsets;
+
+        Search(double[] query, int n) {
+            super(n);
+            this.query = query;
+            this.offsets = new double[query.length];
+        }
+    }
+
+    // the median split of build() along one axis, and the sort of the
+    // bulk-load constructor
+    private final class Partition extends KdPartition {
+        private final int axis;
+
+        private Partition(int axis) {
+            this.axis = axis;
+        }
+
+        @Override
+        double key(int i) {
+            return coords[i * k + axis];
+        }
+
+        @Override
+        void swap(int i, int j) {
+            KdTreeK.this.swap(i, j);
+        }
+
+        // by every coordinate in turn, whatever the axis
+        @Override
+        boolean less(int i, int j) {
+            return compare(i, j) < 0;
+        }
+    }
+}
@@ -0,0 +1,590 @@
+/******************************************************************************
+ *  Compilation:  javac KdTreeST.java
+ *  Execution:    java -ea KdTreeST
+ *  Dependencies: KdPartition.java NearestHeap.java
+ *
+ *  A symbol table from points to values on a 2d-tree, laid out like
+ *  CompactKdTree: node i keeps its point in xs[i], ys[i], its children
+ *  in left[i], right[i] and its value in vals[i], so a value comes back
+ *  with the point that was found without a second lookup and without an
+ *  entry object per point.
+ *
+ *  As in the algs4 symbol tables, values are never null: putting null
+ *  removes the point. The node stays behind with a null value and still
+ *  divides the plane; putting the point again brings it back. Once more
+ *  than a set fraction of the nodes are such tombstones, as in KdTree,
+ *  the table is rebuilt balanced from the points that are left.
+ *
+ ******************************************************************************/
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiConsumer;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+public class KdTreeST<Value> {
+
+    private static final int NIL = -1;
+    private static final int INIT_CAPACITY = 16;
+
+    // default for the largest fraction of tombstones the table may hold
+    private static final double REBUILD_FRACTION = 0.25d;
+
+    private double[] xs;
+    private double[] ys;
+    private int[] left;
+    private int[] right;
+    private Value[] vals;
+    private int root;
+    private int nodes;
+    private int size;
+    private double rebuildFraction;
+
+    // construct an empty symbol table
+    @SuppressWarnings("unchecked")
+    public KdTreeST() {
+        xs = new double[INIT_CAPACITY];
+        ys = new double[INIT_CAPACITY];
+        left = new int[INIT_CAPACITY];
+        right = new int[INIT_CAPACITY];
+        vals = (Value[]) new Object[INIT_CAPACITY];
+        root = NIL;
+        nodes = 0;
+        size = 0;
+        rebuildFraction = REBUILD_FRACTION;
+    }
+
+    // is the symbol table empty?
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of points in the symbol table
+    public int size() {
+        return size;
+    }
+
+    // the largest fraction of removed points the table may keep as
+    // tombstones before it is rebuilt without them
+    public void setRebuildFraction(double fraction) {
+        if (!(fraction > 0d && fraction <= 1d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        rebuildFraction = fraction;
+    }
+
+    // associate the value with point p; a null value removes p
+    public void put(Point2D p, Value val) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x() == 0d ? 0d : p.x();
+        double y = p.y() == 0d ? 0d : p.y();
+        int node = root;
+        int parent = NIL;
+        boolean isLB = false;
+        boolean isVertDiv = true;
+        while (node != NIL) {
+            if (xs[node] == x && ys[node] == y) {
+                if (vals[node] == null && val != null) {
+                    size++;
+                } else if (vals[node] != null && val == null) {
+                    size--;
+                }
+                vals[node] = val;
+                if (nodes - size > rebuildFraction * nodes) {
+                    rebuild();
+                }
+                return;
+            }
+            parent = node;
+            isLB = isVertDiv ? x < xs[node] : y < ys[node];
+            node = isLB ? left[node] : right[node];
+            isVertDiv = !isVertDiv;
+        }
+
+        if (val == null) {
+            return;
+        }
+        int child = newNode(x, y, val);
+        if (parent == NIL) {
+            root = child;
+        } else if (isLB) {
+            left[parent] = child;
+        } else {
+            right[parent] = child;
+        }
+        size++;
+    }
+
+    // the value associated with point p; null if there is none
+    public Value get(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+        int node = root;
+        boolean isVertDiv = true;
+        while (node != NIL) {
+            if (xs[node] == x && ys[node] == y) {
+                return vals[node];
+            }
+            boolean isLB = isVertDiv ? x < xs[node] : y < ys[node];
+            node = isLB ? left[node] : right[node];
+            isVertDiv = !isVertDiv;
+        }
+        return null;
+    }
+
+    // does the symbol table contain point p?
+    public boolean contains(Point2D p) {
+        return get(p) != null;
+    }
+
+    // all points in the symbol table
+    public Iterable<Point2D> points() {
+        ArrayList<Point2D> points = new ArrayList<Point2D>(size);
+        for (int i = 0; i < nodes; i++) {
+            if (vals[i] != null) {
+                points.add(new Point2D(xs[i], ys[i]));
+            }
+        }
+        return points;
+    }
+
+    // the points that are inside the rectangle, with their values
+    public Iterable<Map.Entry<Point2D, Value>> rangeEntries(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        final ArrayList<Map.Entry<Point2D, Value>> entries =
+                new ArrayList<Map.Entry<Point2D, Value>>();
+        range(root, true, rect, new Visitor<Value>() {
+            @Override
+            public void visit(double x, double y, Value val) {
+                entries.add(entry(x, y, val));
+            }
+        });
+        return entries;
+    }
+
+    // pass every point that is inside the rectangle and its value to the
+    // action
+    public void range(RectHV rect,
+            final BiConsumer<? super Point2D, ? super Value> action) {
+        if (rect == null || action == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        range(root, true, rect, new Visitor<Value>() {
+            @Override
+            public void visit(double x, double y, Value val) {
+                action.accept(new Point2D(x, y), val);
+            }
+        });
+    }
+
+    // a nearest neighbor in the symbol table to point p; null if the
+    // symbol table is empty
+    public Point2D nearest(Point2D p) {
+        Map.Entry<Point2D, Value> entry = nearestEntry(p);
+        return entry == null ? null : entry.getKey();
+    }
+
+    // a nearest neighbor in the symbol table to point p with its value;
+    // null if the symbol table is empty
+    public Map.Entry<Point2D, Value> nearestEntry(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        double inf = Double.POSITIVE_INFINITY;
+        NearestHeap search = new NearestHeap(1);
+        nearest(root, true, p.x(), p.y(), -inf, -inf, inf, inf, search);
+        int best = search.poll();
+        return entry(xs[best], ys[best], vals[best]);
+    }
+
+    // the values of the k points closest to p, nearest first (fewer if
+    // the symbol table is smaller)
+    public Iterable<Value> nearest(Point2D p, int k) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (k < 1) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        double inf = Double.POSITIVE_INFINITY;
+        NearestHeap search = new NearestHeap(Math.min(k,
+                Math.max(size, 1)));
+        if (size > 0) {
+            nearest(root, true, p.x(), p.y(), -inf, -inf, inf, inf, search);
+        }
+
+        // the heap gives them farthest first
+        ArrayList<Value> values = new ArrayList<Value>(search.size());
+        while (search.size() > 0) {
+            values.add(vals[search.poll()]);
+        }
+        Collections.reverse(values);
+        return values;
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) {
+        System.out.println("Running tests...");
+        testPutGet();
+        testAgainstHashMap();
+        testChurn();
+    }
+
+    private static void testPutGet() {
+        System.out.println("testPutGet");
+        KdTreeST<String> st = new KdTreeST<String>();
+        assert st.nearestEntry(new Point2D(0.5d, 0.5d)) == null;
+
+        st.put(new Point2D(0.5d, 0.5d), "a");
+        st.put(new Point2D(0.25d, 0.5d), "b");
+        st.put(new Point2D(0.75d, 0.5d), "c");
+        st.put(new Point2D(0.75d, 0.5d), "d");
+        assert st.size() == 3;
+        assert st.get(new Point2D(0.5d, 0.5d)).equals("a");
+        assert st.get(new Point2D(0.75d, 0.5d)).equals("d");
+        assert st.get(new Point2D(0.1d, 0.1d)) == null;
+
+        // removed points are skipped until they are put again
+        st.put(new Point2D(0.5d, 0.5d), null);
+        assert st.size() == 2;
+        assert !st.contains(new Point2D(0.5d, 0.5d));
+        assert st.nearestEntry(new Point2D(0.45d, 0.5d)).getValue()
+                .equals("b");
+        st.put(new Point2D(0.5d, 0.5d), "e");
+        assert st.size() == 3;
+        assert st.nearestEntry(new Point2D(0.5d, 0.5d)).getValue()
+                .equals("e");
+
+        Iterator<String> values = st.nearest(new Point2D(0.3d, 0.5d), 5)
+                .iterator();
+        assert values.next().equals("b");
+        assert values.next().equals("e");
+        assert values.next().equals("d");
+        assert !values.hasNext();
+    }
+
+    private static void testAgainstHashMap() {
+        System.out.println("testAgainstHashMap");
+
+        Random rnd = new Random(21);
+        KdTreeST<Integer> st = new KdTreeST<Integer>();
+        HashMap<Point2D, Integer> expected = new HashMap<Point2D, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            Point2D p = new Point2D(rnd.nextInt(200) / 200d,
+                    rnd.nextInt(200) / 200d);
+            Integer val = rnd.nextInt(10) == 0 ? null : i;
+            st.put(p, val);
+            if (val == null) {
+                expected.remove(p);
+            } else {
+                expected.put(p, val);
+            }
+        }
+        assert st.size() == expected.size();
+        HashMap<Integer, Point2D> points = new HashMap<Integer, Point2D>();
+        for (Map.Entry<Point2D, Integer> entry : expected.entrySet()) {
+            points.put(entry.getValue(), entry.getKey());
+        }
+
+        for (int i = 0; i < 300; i++) {
+            Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+            Point2D p = new Point2D(rnd.nextInt(200) / 200d,
+                    rnd.nextInt(200) / 200d);
+            assert st.get(p) == expected.get(p);
+
+            // the distances of all points to the query in increasing order
+            double[] dists = new double[expected.size()];
+            int n = 0;
+            for (Point2D q : expected.keySet()) {
+                dists[n++] = q.distanceSquaredTo(query);
+            }
+            Arrays.sort(dists);
+
+            Map.Entry<Point2D, Integer> nearest = st.nearestEntry(query);
+            assert nearest.getKey().distanceSquaredTo(query) == dists[0];
+            assert nearest.getValue().equals(expected.get(nearest
+                    .getKey()));
+            // every value is unique, so it tells which point it belongs to
+            int k = 0;
+            for (Integer val : st.nearest(query, 8)) {
+                assert points.get(val).distanceSquaredTo(query) == dists[k];
+                k++;
+            }
+            assert k == 8;
+
+            RectHV rect = new RectHV(query.x(), query.y(),
+                    Math.min(1d, query.x() + 0.1d),
+                    Math.min(1d, query.y() + 0.1d));
+            int count = 0;
+            for (Map.Entry<Point2D, Integer> entry : st.rangeEntries(rect)) {
+                assert rect.contains(entry.getKey());
+                assert entry.getValue().equals(expected.get(entry
+                        .getKey()));
+                count++;
+            }
+            int expectedCount = 0;
+            for (Point2D q : expected.keySet()) {
+                if (rect.contains(q)) {
+                    expectedCount++;
+                }
+            }
+            assert count == expectedCount;
+        }
+    }
+
+    private static void testChurn() {
+        System.out.println("testChurn");
+
+        Random rnd = new Random(42);
+        KdTreeST<Integer> st = new KdTreeST<Integer>();
+        HashMap<Point2D, Integer> expected = new HashMap<Point2D, Integer>();
+        Point2D[] points = new Point2D[5000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+        }
+
+        // mostly removals, so that the puts alone would leave a tree made
+        // of tombstones
+        for (int i = 0; i < 200000; i++) {
+            Point2D p = points[rnd.nextInt(points.length)];
+            if (rnd.nextInt(3) == 0) {
+                Integer val = i;
+                st.put(p, val);
+                expected.put(p, val);
+            } else {
+                st.put(p, null);
+                expected.remove(p);
+            }
+            assert st.size() == expected.size();
+            assert st.nodes - st.size <= REBUILD_FRACTION * st.nodes;
+        }
+        for (Point2D p : points) {
+            assert st.get(p) == expected.get(p);
+        }
+        assert st.nodes <= points.length;
+
+        // a rebuild leaves a balanced tree, whatever the puts before it
+        for (int i = 0; i < points.length; i++) {
+            st.put(points[i], i);
+        }
+        for (int i = 0; i < points.length; i++) {
+            st.put(points[i], null);
+        }
+        assert st.isEmpty();
+        assert st.nearest(new Point2D(0.5d, 0.5d)) == null;
+        for (int i = 0; i < points.length; i++) {
+            st.put(new Point2D(i / (double) points.length, 0.5d), i);
+        }
+        for (int i = 0; i < points.length; i += 2) {
+            st.put(new Point2D(i / (double) points.length, 0.5d), null);
+        }
+        assert st.size() == points.length / 2;
+        assert st.height(st.root) <= 2 + 2 * (int) Math.ceil(Math.log(
+                st.nodes + 1) / Math.log(2));
+        for (int i = 1; i < points.length; i += 2) {
+            Point2D p = new Point2D(i / (double) points.length, 0.5d);
+            assert st.get(p) == i;
+            assert st.nearest(p).equals(p);
+        }
+    }
+
+    // number of levels of the subtree
+    private int height(int node) {
+        if (node == NIL) {
+            return 0;
+        }
+        return 1 + Math.max(height(left[node]), height(right[node]));
+    }
+
+    private Map.Entry<Point2D, Value> entry(double x, double y, Value val) {
+        return new AbstractMap.SimpleImmutableEntry<Point2D, Value>(
+                new Point2D(x, y), val);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int newNode(double x, double y, Value val) {
+        if (nodes == xs.length) {
+            int capacity = 2 * nodes;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            vals = Arrays.copyOf(vals, capacity);
+        }
+        xs[nodes] = x;
+        ys[nodes] = y;
+        left[nodes] = NIL;
+        right[nodes] = NIL;
+        vals[nodes] = val;
+        return nodes++;
+    }
+
+    // drops the tombstones: moves the nodes that hold a value to the
+    // front, in order, and builds a balanced tree over them
+    private void rebuild() {
+        int n = 0;
+        for (int i = 0; i < nodes; i++) {
+            if (vals[i] != null) {
+                xs[n] = xs[i];
+                ys[n] = ys[i];
+                vals[n] = vals[i];
+                n++;
+            }
+        }
+        Arrays.fill(vals, n, nodes, null);
+        nodes = n;
+        root = build(0, n, true);
+    }
+
+    // builds a balanced subtree over the nodes lo..hi-1, splitting at the
+    // median; a node's index is where the split leaves it
+    private int build(int lo, int hi, boolean isVertDiv) {
+        if (lo >= hi) {
+            return NIL;
+        }
+
+        int mid = new Partition(isVertDiv).median(lo, hi);
+
+        left[mid] = build(lo, mid, !isVertDiv);
+        right[mid] = build(mid + 1, hi, !isVertDiv);
+        return mid;
+    }
+
+    private void swap(int i, int j) {
+        double x = xs[i];
+        double y = ys[i];
+        Value val = vals[i];
+        xs[i] = xs[j];
+        ys[i] = ys[j];
+        vals[i] = vals[j];
+        xs[j] = x;
+        ys[j] = y;
+        vals[j] = val;
+    }
+
+    // offers every node of the subtree that holds a value and can beat
+    // the current bound of the search; the subtree lies within
+    // [xmin, xmax] x [ymin, ymax]
+    private void nearest(int node, boolean isVertDiv, double qx, double qy,
+            double xmin, double ymin, double xmax, double ymax,
+            NearestHeap search) {
+        if (node == NIL) {
+            return;
+        }
+
+        // prune subtrees whose rectangle is farther away than the bound
+        double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+        double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+        if (dx * dx + dy * dy > search.bound()) {
+            return;
+        }
+
+        double x = xs[node];
+        double y = ys[node];
+        if (vals[node] != null) {
+            search.offer(node, (x - qx) * (x - qx) + (y - qy) * (y - qy));
+        }
+
+        // go towards the query point first
+        if (isVertDiv) {
+            if (qx < x) {
+                nearest(left[node], false, qx, qy, xmin, ymin, x, ymax,
+                        search);
+                nearest(right[node], false, qx, qy, x, ymin, xmax, ymax,
+                        search);
+            } else {
+                nearest(right[node], false, qx, qy, x, ymin, xmax, ymax,
+                        search);
+                nearest(left[node], false, qx, qy, xmin, ymin, x, ymax,
+                        search);
+            }
+        } else {
+            if (qy < y) {
+                nearest(left[node], true, qx, qy, xmin, ymin, xmax, y,
+                        search);
+                nearest(right[node], true, qx, qy, xmin, y, xmax, ymax,
+                        search);
+            } else {
+                nearest(right[node], true, qx, qy, xmin, y, xmax, ymax,
+                        search);
+                nearest(left[node], true, qx, qy, xmin, ymin, xmax, y,
+                        search);
+            }
+        }
+    }
+
+    private void range(int node, boolean isVertDiv, RectHV rect,
+            Visitor<Value> visitor) {
+        if (node == NIL) {
+            return;
+        }
+
+        double x = xs[node];
+        double y = ys[node];
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin()
+                && y <= rect.ymax() && vals[node] != null) {
+            visitor.visit(x, y, vals[node]);
+        }
+
+        // the left/bottom subtree only holds keys below the split,
+        // the right/top subtree keys at or above it
+        double split = isVertDiv ? x : y;
+        double min = isVertDiv ? rect.xmin() : rect.ymin();
+        double max = isVertDiv ? rect.xmax() : rect.ymax();
+        if (min < split) {
+            range(left[node], !isVertDiv, rect, visitor);
+        }
+        if (max >= split) {
+            range(right[node], !isVertDiv, rect, visitor);
+        }
+    }
+
+    // receives the points a range search finds, as raw coordinates
+    private interface Visitor<Value> {
+        void visit(double x, double y, Value val);
+    }
+
+    // orders the nodes on one coordinate for the median split of rebuild()
+    private final class Partition extends KdPartition {
+        private final boolean isVertDiv;
+
+        private Partition(boolean isVertDiv) {
+            this.isVertDiv = isVertDiv;
+        }
+
+        @Override
+        double key(int i) {
+            return isVertDiv ? xs[i] : ys[i];
+        }
+
+        @Override
+        void swap(int i, int j) {
+            KdTreeST.this.swap(i, j);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/******************************************************************************
+ *  Compilation:  javac KdTreeStats.java
+ *  Execution:    java -ea KdTreeStats
+ *  Dependencies: none
+ *
+ *  A snapshot of the query statistics a KdTree collects while
+ *  KdTree.setStatsEnabled(true): for nearest and for range queries, the
+ *  number of queries, the nodes they visited, the subtrees they pruned
+ *  by the rectangle test, the point distances (or point-in-rectangle
+ *  tests) they computed and the points they returned, along with
+ *  histograms of latency and of nodes visited per query.
+ *
+ *  The histograms are log-linear like HdrHistogram: values below 128
+ *  are counted exactly and every power of two above is split into 64
+ *  equal buckets, so a percentile is off by at most 1/64 (1.6 %) of its
+ *  value. Values above 2^40 (18 minutes in nanoseconds) count as 2^40.
+ *
+ ******************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class KdTreeStats {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = 1L << MAX_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BITS + 1)
+            * HALF_BUCKETS;
+
+    private final Queries nearest;
+    private final Queries range;
+
+    private KdTreeStats(Queries nearest, Queries range) {
+        this.nearest = nearest;
+        this.range = range;
+    }
+
+    // statistics of nearest() queries
+    public Queries nearest() {
+        return nearest;
+    }
+
+    // statistics of range() queries
+    public Queries range() {
+        return range;
+    }
+
+    @Override
+    public String toString() {
+        return "nearest: " + nearest + "\nrange:   " + range;
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) {
+        System.out.println("Running tests...");
+        testHistogram();
+        testRecorder();
+    }
+
+    private static void testHistogram() {
+        System.out.println("testHistogram");
+
+        for (long v = 0; v < 1L << 20; v += 1 + v / 100) {
+            int index = index(v);
+            assert lowest(index) <= v && v <= highest(index);
+            assert index == 0 || highest(index - 1) == lowest(index) - 1;
+            // within 1/64 of the value
+            assert highest(index) - lowest(index) <= v / HALF_BUCKETS;
+        }
+        assert index(Long.MAX_VALUE) == BUCKETS - 1;
+        assert index(MAX_VALUE) == BUCKETS - 1;
+    }
+
+    private static void testRecorder() {
+        System.out.println("testRecorder");
+
+        Recorder recorder = new Recorder();
+        for (int i = 1; i <= 1000; i++) {
+            recorder.nearest.record(1000L * i, i, 2 * i, i, 1);
+        }
+        recorder.range.record(5000L, 10, 3, 10, 7);
+
+        KdTreeStats stats = recorder.snapshot();
+        Queries nearest = stats.nearest();
+        assert nearest.count() == 1000;
+        assert nearest.nodesVisited() == 500500;
+        assert nearest.nodesPruned() == 1001000;
+        assert nearest.distanceComputations() == 500500;
+        assert nearest.results() == 1000;
+        assert nearest.meanNodesVisited() == 500.5d;
+        assert nearest.maxNodesVisited() >= 1000
+                && nearest.maxNodesVisited() <= 1000 + 1000 / 64;
+        assert Math.abs(nearest.latencyNanos(50d) - 500000L) <= 500000L / 64;
+        assert Math.abs(nearest.latencyNanos(99d) - 990000L) <= 990000L / 64;
+        assert nearest.latencyNanos(100d) >= 1000000L;
+        assert stats.range().count() == 1;
+        assert stats.range().results() == 7;
+        assert stats.range().latencyNanos(50d) >= 5000L;
+
+        recorder.reset();
+        assert recorder.snapshot().nearest().count() == 0;
+        assert recorder.snapshot().nearest().latencyNanos(99d) == 0;
+    }
+
+    // the histogram bucket counting value
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        if (value >= MAX_VALUE) {
+            return BUCKETS - 1;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS + 1;
+        return SUB_BUCKETS + (magnitude - SUB_BITS) * HALF_BUCKETS
+                + (int) (value >> shift) - HALF_BUCKETS;
+    }
+
+    // the smallest value counted in the bucket
+    private static long lowest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = SUB_BITS + (index - SUB_BUCKETS) / HALF_BUCKETS;
+        long sub = HALF_BUCKETS + (index - SUB_BUCKETS) % HALF_BUCKETS;
+        return sub << (magnitude - SUB_BITS + 1);
+    }
+
+    // the largest value counted in the bucket
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = SUB_BITS + (index - SUB_BUCKETS) / HALF_BUCKETS;
+        return lowest(index) + (1L << (magnitude - SUB_BITS + 1)) - 1;
+    }
+
+    // the statistics of one kind of query
+    public static final class Queries {
+        private final long count;
+        private final long nodesVisited;
+        private final long nodesPruned;
+        private final long distanceComputations;
+        private final long results;
+        private final long[] latencies;
+        private final long[] visits;
+
+        private Queries(long count, long nodesVisited, long nodesPruned,
+                long distanceComputations, long results, long[] latencies,
+                long[] visits) {
+            this.count = count;
+            this.nodesVisited = nodesVisited;
+            this.nodesPruned = nodesPruned;
+            this.distanceComputations = distanceComputations;
+            this.results = results;
+            this.latencies = latencies;
+            this.visits = visits;
+        }
+
+        // number of queries
+        public long count() {
+            return count;
+        }
+
+        // nodes visited by all queries
+        public long nodesVisited() {
+            return nodesVisited;
+        }
+
+        // subtrees skipped by all queries because of their rectangle
+        public long nodesPruned() {
+            return nodesPruned;
+        }
+
+        // point distances computed by all queries (point-in-rectangle
+        // tests for range queries)
+        public long distanceComputations() {
+            return distanceComputations;
+        }
+
+        // points returned by all queries
+        public long results() {
+            return results;
+        }
+
+        // nodes visited per query on average; 0 if there were none
+        public double meanNodesVisited() {
+            return count == 0 ? 0d : (double) nodesVisited / count;
+        }
+
+        // the most nodes a single query visited (within 1.6 %)
+        public long maxNodesVisited() {
+            return percentile(visits, 100d);
+        }
+
+        // the latency in nanoseconds that the given percentage of the
+        // queries stayed within (within 1.6 %); 0 if there were none
+        public long latencyNanos(double percentile) {
+            if (!(percentile >= 0d && percentile <= 100d)) {
+                throw new java.lang.IllegalArgumentException();
+            }
+            return percentile(latencies, percentile);
+        }
+
+        // the number of nodes that the given percentage of the queries
+        // visited at most (within 1.6 %); 0 if there were none
+        public long nodesVisited(double percentile) {
+            if (!(percentile >= 0d && percentile <= 100d)) {
+                throw new java.lang.IllegalArgumentException();
+            }
+            return percentile(visits, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return count + " queries, " + String.format("%.1f",
+                    meanNodesVisited()) + " nodes visited on average (max "
+                    + maxNodesVisited() + "), latency p50 "
+                    + latencyNanos(50d) + " ns, p99 " + latencyNanos(99d)
+                    + " ns, p99.9 " + latencyNanos(99.9d) + " ns, max "
+                    + latencyNanos(100d) + " ns";
+        }
+
+        // the largest value in the bucket where the running count of the
+        // histogram passes the percentile
+        private static long percentile(long[] histogram, double percentile) {
+            long total = 0;
+            for (long c : histogram) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100d
+                    * total));
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return highest(i);
+                }
+            }
+            return highest(histogram.length - 1);
+        }
+    }
+
+    // collects the statistics of a tree; safe to use from any number of
+    // threads at once
+    static final class Recorder {
+        final Series nearest = new Series();
+        final Series range = new Series();
+
+        // the statistics collected so far
+        KdTreeStats snapshot() {
+            return new KdTreeStats(nearest.snapshot(), range.snapshot());
+        }
+
+        // forget all statistics collected so far
+        void reset() {
+            nearest.reset();
+            range.reset();
+        }
+    }
+
+    // collects the statistics of one kind of query
+    static final class Series {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nodesVisited = new LongAdder();
+        private final LongAdder nodesPruned = new LongAdder();
+        private final LongAdder distanceComputations = new LongAdder();
+        private final LongAdder results = new LongAdder();
+        private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+        private final AtomicLongArray visits = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, long visited, long pruned, long distances,
+                long found) {
+            count.increment();
+            nodesVisited.add(visited);
+            nodesPruned.add(pruned);
+            distanceComputations.add(distances);
+            results.add(found);
+            latencies.incrementAndGet(index(nanos));
+            visits.incrementAndGet(index(visited));
+        }
+
+        private Queries snapshot() {
+            return new Queries(count.sum(), nodesVisited.sum(),
+                    nodesPruned.sum(), distanceComputations.sum(),
+                    results.sum(), toArray(latencies), toArray(visits));
+        }
+
+        private void reset() {
+            count.reset();
+            nodesVisited.reset();
+            nodesPruned.reset();
+            distanceComputations.reset();
+            results.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                latencies.set(i, 0);
+                visits.set(i, 0);
+            }
+        }
+
+        private static long[] toArray(AtomicLongArray histogram) {
+            long[] a = new long[histogram.length()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = histogram.get(i);
+            }
+            return a;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/******************************************************************************
+ *  Compilation:  javac KdTreeStatsMBean.java
+ *  Execution:    none
+ *  Dependencies: KdTreeStats.java
+ *
+ *  The query statistics of a KdTree as seen over JMX, for example in
+ *  jconsole, once registered with KdTree.registerStats(name). Every
+ *  attribute is read from a fresh KdTreeStats snapshot.
+ *
+ ******************************************************************************/
+
+public interface KdTreeStatsMBean {
+
+    // is the tree collecting statistics?
+    boolean isEnabled();
+
+    // start or stop collecting statistics
+    void setEnabled(boolean enabled);
+
+    // forget all statistics collected so far
+    void reset();
+
+    long getNearestCount();
+
+    double getNearestMeanNodesVisited();
+
+    long getNearestMaxNodesVisited();
+
+    long getNearestNodesPruned();
+
+    long getNearestDistanceComputations();
+
+    long getNearestLatencyP50Nanos();
+
+    long getNearestLatencyP99Nanos();
+
+    long getNearestLatencyP999Nanos();
+
+    long getNearestLatencyMaxNanos();
+
+    long getRangeCount();
+
+    double getRangeMeanNodesVisited();
+
+    long getRangeMaxNodesVisited();
+
+    long getRangeNodesPruned();
+
+    long getRangeResults();
+
+    long getRangeLatencyP50Nanos();
+
+    long getRangeLatencyP99Nanos();
+
+    long getRangeLatencyP999Nanos();
+
+    long getRangeLatencyMaxNanos();
+}
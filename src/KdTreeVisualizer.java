@@ -1,14 +1,15 @@
 /******************************************************************************
  *  Compilation:  javac KdTreeVisualizer.java
  *  Execution:    java KdTreeVisualizer
- *  Dependencies: KdTree.java
+ *  Dependencies: KdTree.java PointFileReader.java
  *
  *  Add the points that the user clicks in the standard draw window
  *  to a kd-tree and draw the resulting kd-tree.
  *
  ******************************************************************************/
 
-import edu.princeton.cs.algs4.In;
+import java.io.IOException;
+
 import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.RectHV;
 import edu.princeton.cs.algs4.StdDraw;
@@ -16,7 +17,7 @@ import edu.princeton.cs.algs4.StdOut;
 
 public class KdTreeVisualizer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
        
         
         RectHV rect = new RectHV(0.0, 0.0, 1.0, 1.0);
@@ -25,12 +26,9 @@ public class KdTreeVisualizer {
         
         if (args.length==1) {
             String filename = args[0];
-            In in = new In(filename);
+            PointFileReader in = PointFileReader.read(filename);
             
-            while (!in.isEmpty()) {
-                double x = in.readDouble();
-                double y = in.readDouble();
-                Point2D p = new Point2D(x, y);
+            for (Point2D p : in.points()) {
                 kdtree.insert(p);
                 StdDraw.clear();
                 kdtree.draw();
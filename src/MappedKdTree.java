@@ -0,0 +1,326 @@
+/******************************************************************************
+ *  Compilation:  javac MappedKdTree.java
+ *  Execution:    java -ea MappedKdTree
+ *  Dependencies: KdTree.java
+ *
+ *  A read-only 2d-tree that answers queries straight from a snapshot file
+ *  written by KdTree.save(), memory-mapped with FileChannel.map. Nothing is
+ *  deserialized: opening a snapshot costs no more than mapping the file,
+ *  and the operating system pages nodes in as queries touch them.
+ *
+ *  The file is little-endian. A 64-byte header holds
+ *
+ *      int    magic ("KDT1"), version
+ *      int    number of nodes, number of points (not counting deleted ones)
+ *      int    unused, unused
+ *      double xmin, ymin, xmax, ymax of the root rectangle
+ *
+ *  followed by one 24-byte record per node, in preorder, so the root is
+ *  node 0:
+ *
+ *      double x, y
+ *      int    left/bottom child + 1 (0 if none), high bit set if deleted
+ *      int    right/top child + 1 (0 if none)
+ *
+ *  The rectangle of a node is derived from the root rectangle on the way
+ *  down. A single mapping is limited to 2 GB, about 89 million nodes.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+public class MappedKdTree {
+
+    static final int MAGIC = 0x4B445431;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int NODE_BYTES = 24;
+    static final int DELETED = Integer.MIN_VALUE;
+
+    private static final int NIL = -1;
+
+    private final MappedByteBuffer buffer;
+    private final int nodes;
+    private final int size;
+    private final RectHV domain;
+
+    private MappedKdTree(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a kd-tree snapshot");
+        }
+        this.nodes = buffer.getInt(8);
+        this.size = buffer.getInt(12);
+        this.domain = new RectHV(buffer.getDouble(24), buffer.getDouble(32),
+                buffer.getDouble(40), buffer.getDouble(48));
+        if (buffer.capacity() < HEADER_BYTES + (long) nodes * NODE_BYTES) {
+            throw new IOException("truncated kd-tree snapshot");
+        }
+    }
+
+    // map the snapshot written by KdTree.save() to the file
+    public static MappedKdTree open(Path file) throws IOException {
+        if (file == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("kd-tree snapshot larger than 2 GB");
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedKdTree(buffer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // is the set empty?
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // number of points in the set
+    public int size() {
+        return size;
+    }
+
+    // does the set contain point p?
+    public boolean contains(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+        int node = nodes == 0 ? NIL : 0;
+        boolean isVertDiv = true;
+        while (node != NIL) {
+            double nodeX = x(node);
+            double nodeY = y(node);
+            if (nodeX == x && nodeY == y) {
+                return !isDeleted(node);
+            }
+            boolean isLB = isVertDiv ? x < nodeX : y < nodeY;
+            node = isLB ? left(node) : right(node);
+            isVertDiv = !isVertDiv;
+        }
+        return false;
+    }
+
+    // all points that are inside the rectangle
+    public Iterable<Point2D> range(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        if (nodes > 0) {
+            range(0, true, rect, points);
+        }
+        return points;
+    }
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    public Point2D nearest(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        int best = nearest(0, true, p.x(), p.y(), domain.xmin(),
+                domain.ymin(), domain.xmax(), domain.ymax(), NIL,
+                Double.POSITIVE_INFINITY);
+        return new Point2D(x(best), y(best));
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) throws IOException {
+        System.out.println("Running tests...");
+        testSnapshot();
+    }
+
+    private static void testSnapshot() throws IOException {
+        System.out.println("testSnapshot");
+
+        Path file = Files.createTempFile("kdtree", ".snapshot");
+        try {
+            KdTree tree = new KdTree();
+            tree.save(file);
+            MappedKdTree mapped = MappedKdTree.open(file);
+            assert mapped.isEmpty();
+            assert mapped.nearest(new Point2D(0.5d, 0.5d)) == null;
+
+            Random rnd = new Random(31);
+            Point2D[] points = new Point2D[20000];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = new Point2D(rnd.nextInt(1000) / 1000d,
+                        rnd.nextInt(1000) / 1000d);
+                tree.insert(points[i]);
+            }
+            // deleted points stay in the file as tombstones
+            for (int i = 0; i < points.length; i += 10) {
+                tree.delete(points[i]);
+            }
+
+            tree.save(file);
+            mapped = MappedKdTree.open(file);
+            assert mapped.size() == tree.size();
+
+            for (int i = 0; i < 1000; i++) {
+                assert mapped.contains(points[i]) == tree.contains(points[i]);
+
+                Point2D query = new Point2D(rnd.nextDouble(), rnd.nextDouble());
+                assert mapped.nearest(query).distanceSquaredTo(query) == tree
+                        .nearest(query).distanceSquaredTo(query);
+
+                double x = rnd.nextDouble();
+                double y = rnd.nextDouble();
+                RectHV rect = new RectHV(x, y, Math.min(1d, x + 0.05d),
+                        Math.min(1d, y + 0.05d));
+                assert count(mapped.range(rect)) == tree.count(rect);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static int count(Iterable<Point2D> points) {
+        int count = 0;
+        for (Point2D p : points) {
+            count++;
+        }
+        return count;
+    }
+
+    private double x(int node) {
+        return buffer.getDouble(HEADER_BYTES + node * NODE_BYTES);
+    }
+
+    private double y(int node) {
+        return buffer.getDouble(HEADER_BYTES + node * NODE_BYTES + 8);
+    }
+
+    private int left(int node) {
+        return (buffer.getInt(HEADER_BYTES + node * NODE_BYTES + 16)
+                & ~DELETED) - 1;
+    }
+
+    private int right(int node) {
+        return buffer.getInt(HEADER_BYTES + node * NODE_BYTES + 20) - 1;
+    }
+
+    private boolean isDeleted(int node) {
+        return (buffer.getInt(HEADER_BYTES + node * NODE_BYTES + 16)
+                & DELETED) != 0;
+    }
+
+    // returns the closest point to (qx, qy) in the subtree that is not
+    // deleted, or best if none is closer; the subtree lies within
+    // [xmin, xmax] x [ymin, ymax]
+    private int nearest(int node, boolean isVertDiv, double qx, double qy,
+            double xmin, double ymin, double xmax, double ymax, int best,
+            double distBest) {
+        if (node == NIL) {
+            return best;
+        }
+
+        // prune subtrees whose rectangle is farther away than the best so far
+        double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+        double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+        if (dx * dx + dy * dy > distBest) {
+            return best;
+        }
+
+        double x = x(node);
+        double y = y(node);
+        double distNow = (x - qx) * (x - qx) + (y - qy) * (y - qy);
+        if (distNow < distBest && !isDeleted(node)) {
+            best = node;
+            distBest = distNow;
+        }
+
+        // go towards the query point first
+        int lb = left(node);
+        int rt = right(node);
+        if (isVertDiv) {
+            if (qx < x) {
+                best = nearest(lb, false, qx, qy, xmin, ymin, x, ymax, best,
+                        distBest);
+                best = nearest(rt, false, qx, qy, x, ymin, xmax, ymax, best,
+                        distance(best, qx, qy));
+            } else {
+                best = nearest(rt, false, qx, qy, x, ymin, xmax, ymax, best,
+                        distBest);
+                best = nearest(lb, false, qx, qy, xmin, ymin, x, ymax, best,
+                        distance(best, qx, qy));
+            }
+        } else {
+            if (qy < y) {
+                best = nearest(lb, true, qx, qy, xmin, ymin, xmax, y, best,
+                        distBest);
+                best = nearest(rt, true, qx, qy, xmin, y, xmax, ymax, best,
+                        distance(best, qx, qy));
+            } else {
+                best = nearest(rt, true, qx, qy, xmin, y, xmax, ymax, best,
+                        distBest);
+                best = nearest(lb, true, qx, qy, xmin, ymin, xmax, y, best,
+                        distance(best, qx, qy));
+            }
+        }
+        return best;
+    }
+
+    private double distance(int node, double qx, double qy) {
+        if (node == NIL) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double dx = x(node) - qx;
+        double dy = y(node) - qy;
+        return dx * dx + dy * dy;
+    }
+
+    private void range(int node, boolean isVertDiv, RectHV rect,
+            ArrayList<Point2D> points) {
+        if (node == NIL) {
+            return;
+        }
+
+        double x = x(node);
+        double y = y(node);
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin()
+                && y <= rect.ymax() && !isDeleted(node)) {
+            points.add(new Point2D(x, y));
+        }
+
+        // the left/bottom subtree only holds keys below the split,
+        // the right/top subtree keys at or above it
+        double split = isVertDiv ? x : y;
+        double min = isVertDiv ? rect.xmin() : rect.ymin();
+        double max = isVertDiv ? rect.xmax() : rect.ymax();
+        if (min < split) {
+            range(left(node), !isVertDiv, rect, points);
+        }
+        if (max >= split) {
+            range(right(node), !isVertDiv, rect, points);
+        }
+    }
+}
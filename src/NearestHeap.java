@@ -0,0 +1,78 @@
+/******************************************************************************
+ *  Compilation:  javac NearestHeap.java
+ *  Execution:    none
+ *  Dependencies: none
+ *
+ *  The best n candidates of a nearest-neighbor search, for the trees
+ *  that keep their nodes in arrays: a max-heap of node indices on their
+ *  squared distance to the query, so that the farthest one is the bound
+ *  a new candidate has to beat and the first to go.
+ *
+ ******************************************************************************/
+
+class NearestHeap {
+    private final int[] nodes;
+    private final double[] dists;
+    private int count;
+
+    NearestHeap(int n) {
+        this.nodes = new int[n];
+        this.dists = new double[n];
+        this.count = 0;
+    }
+
+    // number of nodes in the heap
+    int size() {
+        return count;
+    }
+
+    // the distance a point has to beat to be offered
+    double bound() {
+        return count < nodes.length ? Double.POSITIVE_INFINITY : dists[0];
+    }
+
+    void offer(int node, double dist) {
+        if (count < nodes.length) {
+            // sift the new leaf up
+            int i = count++;
+            while (i > 0 && dists[(i - 1) / 2] < dist) {
+                nodes[i] = nodes[(i - 1) / 2];
+                dists[i] = dists[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            nodes[i] = node;
+            dists[i] = dist;
+        } else if (dist < dists[0]) {
+            siftDown(node, dist);
+        }
+    }
+
+    // removes the farthest node
+    int poll() {
+        int node = nodes[0];
+        count--;
+        if (count > 0) {
+            siftDown(nodes[count], dists[count]);
+        }
+        return node;
+    }
+
+    // puts the node in place of the root and restores the heap order
+    private void siftDown(int node, double dist) {
+        int i = 0;
+        while (2 * i + 1 < count) {
+            int child = 2 * i + 1;
+            if (child + 1 < count && dists[child + 1] > dists[child]) {
+                child++;
+            }
+            if (dists[child] <= dist) {
+                break;
+            }
+            nodes[i] = nodes[child];
+            dists[i] = dists[child];
+            i = child;
+        }
+        nodes[i] = node;
+        dists[i] = dist;
+    }
+}
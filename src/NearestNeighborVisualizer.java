@@ -1,7 +1,7 @@
 /******************************************************************************
  *  Compilation:  javac NearestNeighborVisualizer.java
  *  Execution:    java NearestNeighborVisualizer input.txt
- *  Dependencies: PointSET.java KdTree.java
+ *  Dependencies: PointSET.java KdTree.java PointFileReader.java
  *
  *  Read points from a file (specified as a command-line argument) and
  *  draw to standard draw. Highlight the closest point to the mouse.
@@ -11,28 +11,26 @@
  *
  ******************************************************************************/
 
-import edu.princeton.cs.algs4.In;
+import java.io.IOException;
+
 import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.StdDraw;
 
 public class NearestNeighborVisualizer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         String filename = args[0];
-        In in = new In(filename);
+        PointFileReader in = PointFileReader.read(filename);
 
         StdDraw.show(0);
 
         // initialize the two data structures with point from standard input
         PointSET brute = new PointSET();
-        KdTree kdtree = new KdTree();
-        while (!in.isEmpty()) {
-            double x = in.readDouble();
-            double y = in.readDouble();
-            Point2D p = new Point2D(x, y);
-            kdtree.insert(p);
+        Point2D[] points = in.points();
+        for (Point2D p : points) {
             brute.insert(p);
         }
+        KdTree kdtree = new KdTree(points);
 
         while (true) {
 
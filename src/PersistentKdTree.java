@@ -0,0 +1,560 @@
+/******************************************************************************
+ *  Compilation:  javac PersistentKdTree.java
+ *  Execution:    java -ea PersistentKdTree
+ *  Dependencies: KdPartition.java KdTreeChecker.java
+ *
+ *  A 2d-tree whose nodes never change once they are reachable. insert()
+ *  copies the nodes on the path from the root to the new leaf, shares
+ *  every other subtree with the previous version, and publishes the new
+ *  root with a compare-and-set. A query reads the root once and then
+ *  sees one consistent version of the set for as long as it runs, so
+ *  any number of threads can query without locks while others insert.
+ *
+ *  snapshot() hands out the current version in O(1); it stays queryable
+ *  (and can be inserted into on its own) however the original changes.
+ *
+ *  Like KdTree's balanced mode, insert() rebuilds the highest subtree on
+ *  the copied path in which one child holds more than 3/4 of the nodes.
+ *  The tree stays O(log n) deep whatever the insert order, so neither
+ *  inserts nor the recursive queries of readers can run out of stack.
+ *
+ *  Node rectangles are derived on the way down instead of stored, which
+ *  keeps the copied path small and leaves the plane unbounded.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+
+public class PersistentKdTree {
+
+    // no child of a subtree holds more than this fraction of its nodes
+    // for long, as in KdTree.setBalanceFactor()
+    private static final double BALANCE_FACTOR = 0.75d;
+
+    private final AtomicReference<Node> root;
+
+    // construct an empty set of points
+    public PersistentKdTree() {
+        root = new AtomicReference<Node>(null);
+    }
+
+    // construct a balanced set of the given points (duplicates are ignored)
+    public PersistentKdTree(Point2D[] points) {
+        this();
+        if (points == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        Point2D[] unique = points.clone();
+        for (Point2D p : unique) {
+            if (p == null) {
+                throw new java.lang.NullPointerException();
+            }
+        }
+
+        // drop duplicates so that every point ends up in exactly one node
+        Arrays.sort(unique);
+        int n = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (n == 0 || !unique[n - 1].equals(unique[i])) {
+                unique[n++] = unique[i];
+            }
+        }
+        root.set(build(unique, 0, n, true));
+    }
+
+    private PersistentKdTree(Node version) {
+        root = new AtomicReference<Node>(version);
+    }
+
+    // the set as it is now, unaffected by later inserts into this one
+    public PersistentKdTree snapshot() {
+        return new PersistentKdTree(root.get());
+    }
+
+    // is the set empty?
+    public boolean isEmpty() {
+        return root.get() == null;
+    }
+
+    // number of points in the set
+    public int size() {
+        return size(root.get());
+    }
+
+    // add the point to the set (if it is not already in the set)
+    public void insert(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        // a concurrent insert that wins the race makes this one retry on
+        // the newer version
+        while (true) {
+            Node current = root.get();
+            Node next = insert(current, p);
+            if (next == current || root.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    // does the set contain point p?
+    public boolean contains(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        Node x = root.get();
+        boolean isVertDiv = true;
+        while (x != null) {
+            if (x.p.equals(p)) {
+                return true;
+            }
+            x = key(p, isVertDiv) < key(x.p, isVertDiv) ? x.lb : x.rt;
+            isVertDiv = !isVertDiv;
+        }
+        return false;
+    }
+
+    // all points that are inside the rectangle
+    public Iterable<Point2D> range(RectHV rect) {
+        if (rect == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        ArrayList<Point2D> points = new ArrayList<Point2D>();
+        range(root.get(), true, rect, points);
+        return points;
+    }
+
+    // a nearest neighbor in the set to point p; null if the set is empty
+    public Point2D nearest(Point2D p) {
+        if (p == null) {
+            throw new java.lang.NullPointerException();
+        }
+
+        Node x = root.get();
+        if (x == null) {
+            return null;
+        }
+
+        double inf = Double.POSITIVE_INFINITY;
+        return nearest(x, true, p.x(), p.y(), -inf, -inf, inf, inf, x).p;
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Running tests...");
+        testAgainstKdTree();
+        testSortedInserts();
+        testSnapshot();
+        testConcurrentInserts();
+    }
+
+    private static void testAgainstKdTree() {
+        System.out.println("testAgainstKdTree");
+
+        Random rnd = new Random(18);
+        Point2D[] points = KdTreeChecker.points(rnd, 20000);
+        PersistentKdTree inserted = new PersistentKdTree();
+        for (Point2D p : points) {
+            inserted.insert(p);
+        }
+        PersistentKdTree balanced = new PersistentKdTree(points);
+        KdTreeChecker.check(points, rnd, checker(inserted), checker(balanced));
+    }
+
+    // adapts a tree to the differential test against KdTree
+    private static KdTreeChecker checker(final PersistentKdTree tree) {
+        return new KdTreeChecker() {
+            @Override
+            int size() {
+                return tree.size();
+            }
+
+            @Override
+            boolean contains(Point2D p) {
+                return tree.contains(p);
+            }
+
+            @Override
+            Point2D nearest(Point2D p) {
+                return tree.nearest(p);
+            }
+
+            @Override
+            Iterable<Point2D> range(RectHV rect) {
+                return tree.range(rect);
+            }
+        };
+    }
+
+    private static void testSortedInserts() {
+        System.out.println("testSortedInserts");
+
+        // a sorted file would turn an unbalanced tree into a linked list,
+        // deeper than the stack of a recursive insert or query
+        int numPoints = 200000;
+        PersistentKdTree tree = new PersistentKdTree();
+        for (int i = 0; i < numPoints; i++) {
+            double coord = (double) i / numPoints;
+            tree.insert(new Point2D(coord, coord));
+        }
+        assert tree.size() == numPoints;
+        int maxHeight = 1 + (int) (Math.log(numPoints)
+                / Math.log(1 / BALANCE_FACTOR));
+        assert height(tree.root.get()) <= maxHeight;
+        RectHV all = new RectHV(0d, 0d, 1d, 1d);
+        assert count(tree.range(all)) == numPoints;
+
+        // equal keys all go right, so a vertical line can never be split
+        // evenly; it must still stay shallow and must not be rebuilt on
+        // every insert
+        PersistentKdTree line = new PersistentKdTree();
+        for (int i = 0; i < numPoints; i++) {
+            line.insert(new Point2D(0.5d, (double) i / numPoints));
+        }
+        assert line.size() == numPoints;
+        assert height(line.root.get()) <= 2 * maxHeight;
+        assert line.contains(new Point2D(0.5d, 0.5d));
+        assert line.nearest(new Point2D(0.6d, 0.25d))
+                .equals(new Point2D(0.5d, 0.25d));
+    }
+
+    private static void testSnapshot() {
+        System.out.println("testSnapshot");
+
+        PersistentKdTree tree = new PersistentKdTree();
+        PersistentKdTree empty = tree.snapshot();
+        tree.insert(new Point2D(0.5d, 0.5d));
+        tree.insert(new Point2D(0.25d, 0.5d));
+        PersistentKdTree two = tree.snapshot();
+        tree.insert(new Point2D(0.75d, 0.5d));
+        two.insert(new Point2D(0.1d, 0.1d));
+
+        assert empty.isEmpty();
+        assert empty.nearest(new Point2D(0.5d, 0.5d)) == null;
+        assert tree.size() == 3;
+        assert two.size() == 3;
+        assert tree.contains(new Point2D(0.75d, 0.5d));
+        assert !tree.contains(new Point2D(0.1d, 0.1d));
+        assert two.contains(new Point2D(0.1d, 0.1d));
+        assert !two.contains(new Point2D(0.75d, 0.5d));
+    }
+
+    private static void testConcurrentInserts() throws InterruptedException {
+        System.out.println("testConcurrentInserts");
+
+        final int numWriters = 2;
+        final int numPoints = 50000;
+        final PersistentKdTree tree = new PersistentKdTree();
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        final AtomicBoolean isConsistent = new AtomicBoolean(true);
+        final CountDownLatch writersDone = new CountDownLatch(numWriters);
+
+        // every version a reader gets hold of must hold as many points as
+        // a query over the whole plane finds, and never shrink
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            final Random rnd = new Random(i);
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RectHV all = new RectHV(0d, 0d, 1d, 1d);
+                    int last = 0;
+                    while (!isDone.get()) {
+                        PersistentKdTree version = tree.snapshot();
+                        int size = version.size();
+                        if (size < last || count(version.range(all))
+                                != size) {
+                            isConsistent.set(false);
+                        }
+                        last = size;
+                        Point2D query = new Point2D(rnd.nextDouble(),
+                                rnd.nextDouble());
+                        if (size > 0 && version.nearest(query) == null) {
+                            isConsistent.set(false);
+                        }
+                    }
+                }
+            });
+            readers[i].start();
+        }
+
+        Thread[] writers = new Thread[numWriters];
+        for (int i = 0; i < numWriters; i++) {
+            final int offset = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rnd = new Random(100 + offset);
+                    for (int j = 0; j < numPoints; j++) {
+                        // each writer keeps to its own horizontal band
+                        tree.insert(new Point2D(rnd.nextDouble(),
+                                (offset + rnd.nextDouble()) / numWriters));
+                    }
+                    writersDone.countDown();
+                }
+            });
+            writers[i].start();
+        }
+
+        writersDone.await();
+        isDone.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assert isConsistent.get();
+        assert tree.size() == numWriters * numPoints;
+    }
+
+    private static int count(Iterable<Point2D> points) {
+        int count = 0;
+        for (Point2D p : points) {
+            count++;
+        }
+        return count;
+    }
+
+    private static double key(Point2D p, boolean isVertDiv) {
+        return isVertDiv ? p.x() : p.y();
+    }
+
+    private static int size(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return x.size;
+    }
+
+    private static int height(Node x) {
+        if (x == null) {
+            return 0;
+        }
+        return 1 + Math.max(height(x.lb), height(x.rt));
+    }
+
+    // builds a balanced subtree from the unique points in a[lo, hi), by
+    // splitting around the median of the current axis
+    private static Node build(Point2D[] a, int lo, int hi,
+            boolean isVertDiv) {
+        if (lo >= hi) {
+            return null;
+        }
+
+        int mid = new Partition(a, isVertDiv).median(lo, hi);
+
+        // points sharing the median key may leave the split uneven, and
+        // no rebuild can do better until the subtree has doubled
+        int skewed = mid < lo + (hi - lo) / 2 ? hi - lo : 0;
+        Node lb = build(a, lo, mid, !isVertDiv);
+        Node rt = build(a, mid + 1, hi, !isVertDiv);
+        return new Node(a[mid], lb, rt, skewed);
+    }
+
+    // the version x with point added; x itself if the point is already in
+    // it. The nodes on the path to the new leaf are copied, and the
+    // highest of them that would grow too lopsided is rebuilt instead
+    private static Node insert(Node x, Point2D point) {
+        // walk down to the new leaf, remembering the path and the highest
+        // subtree that the insert tips over the balance factor
+        Node[] path = new Node[64];
+        int depth = 0;
+        int scapegoat = -1;
+        boolean isVertDiv = true;
+        for (Node node = x; node != null; isVertDiv = !isVertDiv) {
+            if (node.p.equals(point)) {
+                return x;
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, 2 * depth);
+            }
+            path[depth++] = node;
+
+            boolean isLeft = key(point, isVertDiv) < key(node.p, isVertDiv);
+            int larger = 1 + size(isLeft ? node.lb : node.rt);
+            larger = Math.max(larger, size(isLeft ? node.rt : node.lb));
+            if (scapegoat < 0 && larger > BALANCE_FACTOR * (node.size + 1)
+                    && node.size + 1 >= 2 * node.skewed) {
+                scapegoat = depth - 1;
+            }
+            node = isLeft ? node.lb : node.rt;
+        }
+
+        // the new bottom of the path: a leaf, or the rebuilt scapegoat
+        Node child;
+        if (scapegoat < 0) {
+            child = new Node(point, null, null, 0);
+        } else {
+            Node subtree = path[scapegoat];
+            Point2D[] points = new Point2D[subtree.size + 1];
+            points[collect(subtree, points, 0)] = point;
+            depth = scapegoat;
+            child = build(points, 0, points.length, depth % 2 == 0);
+        }
+
+        // copy the nodes above it, root last
+        for (int i = depth - 1; i >= 0; i--) {
+            Node node = path[i];
+            boolean isVertDivNode = i % 2 == 0;
+            if (key(point, isVertDivNode) < key(node.p, isVertDivNode)) {
+                child = new Node(node.p, child, node.rt, node.skewed);
+            } else {
+                child = new Node(node.p, node.lb, child, node.skewed);
+            }
+        }
+        return child;
+    }
+
+    // copies the points of x into a from index i on; returns the index
+    // after the last one copied
+    private static int collect(Node x, Point2D[] a, int i) {
+        if (x == null) {
+            return i;
+        }
+        i = collect(x.lb, a, i);
+        a[i++] = x.p;
+        return collect(x.rt, a, i);
+    }
+
+    // the closest point to (qx, qy) in the subtree, or best if none is
+    // closer; the subtree lies within [xmin, xmax] x [ymin, ymax]
+    private static Node nearest(Node x, boolean isVertDiv, double qx,
+            double qy, double xmin, double ymin, double xmax, double ymax,
+            Node best) {
+        if (x == null) {
+            return best;
+        }
+
+        double bestDx = best.p.x() - qx;
+        double bestDy = best.p.y() - qy;
+        double distBest = bestDx * bestDx + bestDy * bestDy;
+
+        // prune subtrees whose rectangle is farther away than the best so far
+        double dx = qx < xmin ? xmin - qx : (qx > xmax ? qx - xmax : 0d);
+        double dy = qy < ymin ? ymin - qy : (qy > ymax ? qy - ymax : 0d);
+        if (dx * dx + dy * dy > distBest) {
+            return best;
+        }
+
+        double nodeDx = x.p.x() - qx;
+        double nodeDy = x.p.y() - qy;
+        if (nodeDx * nodeDx + nodeDy * nodeDy < distBest) {
+            best = x;
+        }
+
+        // go towards the query point first
+        if (isVertDiv) {
+            double split = x.p.x();
+            if (qx < split) {
+                best = nearest(x.lb, false, qx, qy, xmin, ymin, split, ymax,
+                        best);
+                best = nearest(x.rt, false, qx, qy, split, ymin, xmax, ymax,
+                        best);
+            } else {
+                best = nearest(x.rt, false, qx, qy, split, ymin, xmax, ymax,
+                        best);
+                best = nearest(x.lb, false, qx, qy, xmin, ymin, split, ymax,
+                        best);
+            }
+        } else {
+            double split = x.p.y();
+            if (qy < split) {
+                best = nearest(x.lb, true, qx, qy, xmin, ymin, xmax, split,
+                        best);
+                best = nearest(x.rt, true, qx, qy, xmin, split, xmax, ymax,
+                        best);
+            } else {
+                best = nearest(x.rt, true, qx, qy, xmin, split, xmax, ymax,
+                        best);
+                best = nearest(x.lb, true, qx, qy, xmin, ymin, xmax, split,
+                        best);
+            }
+        }
+        return best;
+    }
+
+    private static void range(Node x, boolean isVertDiv, RectHV rect,
+            ArrayList<Point2D> points) {
+        if (x == null) {
+            return;
+        }
+
+        if (rect.contains(x.p)) {
+            points.add(x.p);
+        }
+
+        // the left/bottom subtree only holds keys below the split,
+        // the right/top subtree keys at or above it
+        double split = key(x.p, isVertDiv);
+        double min = isVertDiv ? rect.xmin() : rect.ymin();
+        double max = isVertDiv ? rect.xmax() : rect.ymax();
+        if (min < split) {
+            range(x.lb, !isVertDiv, rect, points);
+        }
+        if (max >= split) {
+            range(x.rt, !isVertDiv, rect, points);
+        }
+    }
+
+    // a node is never changed once it is built; all fields are final, so
+    // a thread that reads a root sees every node below it complete
+    private static final class Node {
+        // the point
+        private final Point2D p;
+
+        // the left/bottom subtree
+        private final Node lb;
+
+        // the right/top subtree
+        private final Node rt;
+
+        // number of points in this subtree
+        private final int size;
+
+        // the size of this subtree when build() split it unevenly because
+        // of points sharing the median key; 0 if it did not
+        private final int skewed;
+
+        private Node(Point2D p, Node lb, Node rt, int skewed) {
+            this.p = p;
+            this.lb = lb;
+            this.rt = rt;
+            this.size = 1 + PersistentKdTree.size(lb)
+                    + PersistentKdTree.size(rt);
+            this.skewed = skewed;
+        }
+    }
+
+    // the median split of build() over an array of points
+    private static final class Partition extends KdPartition {
+        private final Point2D[] a;
+        private final boolean isVertDiv;
+
+        private Partition(Point2D[] a, boolean isVertDiv) {
+            this.a = a;
+            this.isVertDiv = isVertDiv;
+        }
+
+        @Override
+        double key(int i) {
+            return PersistentKdTree.key(a[i], isVertDiv);
+        }
+
+        @Override
+        void swap(int i, int j) {
+            Point2D t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+}
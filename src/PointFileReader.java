@@ -0,0 +1,417 @@
+/******************************************************************************
+ *  Compilation:  javac PointFileReader.java
+ *  Execution:    java -ea PointFileReader
+ *  Dependencies: KdTreeGenerator.java
+ *
+ *  Reads a file of "x y" lines, as written by KdTreeGenerator, into
+ *  primitive coordinate arrays. The file is memory-mapped and split into
+ *  chunks at line boundaries; the chunks are parsed in parallel on the
+ *  common fork/join pool by a hand-written number parser that falls back
+ *  to Double.parseDouble only for numbers it cannot convert exactly.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.princeton.cs.algs4.Point2D;
+
+public class PointFileReader {
+
+    // bytes per chunk; each chunk is mapped and parsed on its own
+    private static final int CHUNK_BYTES = 1 << 24;
+
+    // the powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3,
+            1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+            1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final double[] xs;
+    private final double[] ys;
+
+    private PointFileReader(double[] xs, double[] ys) {
+        this.xs = xs;
+        this.ys = ys;
+    }
+
+    // read all points in the file
+    public static PointFileReader read(String filename) throws IOException {
+        if (filename == null) {
+            throw new java.lang.NullPointerException();
+        }
+        return read(Paths.get(filename), CHUNK_BYTES);
+    }
+
+    // number of points read
+    public int size() {
+        return xs.length;
+    }
+
+    // the x-coordinates of the points, in file order
+    public double[] xs() {
+        return xs;
+    }
+
+    // the y-coordinates of the points, in file order
+    public double[] ys() {
+        return ys;
+    }
+
+    // the points, in file order
+    public Point2D[] points() {
+        Point2D[] points = new Point2D[xs.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point2D(xs[i], ys[i]);
+        }
+        return points;
+    }
+
+    // unit testing of the methods (optional)
+    public static void main(String[] args) throws IOException {
+        System.out.println("Running tests...");
+        testFormats();
+        testChunks();
+    }
+
+    private static void testFormats() throws IOException {
+        System.out.println("testFormats");
+
+        String[] tokens = { "0.195080", "0.938777", "1", "-2", "+3.5",
+                "-0.0", "1e3", "2.5E-3", ".5", "5.", "0.1234567890123456789",
+                "123456789012345678901234", "1e-320", "4.9e-324",
+                "1.7976931348623157e308" };
+        Path file = Files.createTempFile("points", ".txt");
+        try {
+            // blank lines, tabs, CRLF and no final newline
+            StringBuilder text = new StringBuilder("\n");
+            for (int i = 0; i < tokens.length; i += 2) {
+                String y = i + 1 < tokens.length ? tokens[i + 1] : "0";
+                text.append(tokens[i]).append(i % 4 == 0 ? " " : "\t ")
+                        .append(y).append(i % 3 == 0 ? "\r\n" : "\n");
+            }
+            text.append("0.25 0.75");
+            Files.write(file, ascii(text.toString()));
+
+            PointFileReader reader = read(file, 7);
+            assert reader.size() == (tokens.length + 1) / 2 + 1;
+            for (int i = 0; i < tokens.length; i++) {
+                double expected = Double.parseDouble(tokens[i]);
+                double actual = i % 2 == 0 ? reader.xs()[i / 2]
+                        : reader.ys()[i / 2];
+                assert Double.compare(actual, expected) == 0;
+            }
+            assert reader.points()[reader.size() - 1].equals(new Point2D(
+                    0.25d, 0.75d));
+
+            Files.write(file, ascii(""));
+            assert read(file, CHUNK_BYTES).size() == 0;
+
+            Files.write(file, ascii("0.5 0.5\n0.25\n"));
+            try {
+                read(file, CHUNK_BYTES);
+                assert false;
+            } catch (IOException e) {
+                // odd number of coordinates
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void testChunks() throws IOException {
+        System.out.println("testChunks");
+
+        Random rnd = new Random(37);
+        Point2D[] points = KdTreeGenerator.points("uniform", 100000, rnd);
+        Path file = Files.createTempFile("points", ".txt");
+        try {
+            PrintWriter out = new PrintWriter(Files.newBufferedWriter(file,
+                    StandardCharsets.US_ASCII));
+            for (Point2D p : points) {
+                out.printf("%8.6f %8.6f\n", p.x(), p.y());
+            }
+            out.close();
+
+            // small chunks end mid-line and have to move to a line break
+            int[] chunkSizes = { 5, 4096, 100003, CHUNK_BYTES };
+            for (int chunkBytes : chunkSizes) {
+                PointFileReader reader = read(file, chunkBytes);
+                assert reader.size() == points.length;
+                for (int i = 0; i < points.length; i++) {
+                    assert Math.abs(reader.xs()[i] - points[i].x()) < 1e-6;
+                    assert Math.abs(reader.ys()[i] - points[i].y()) < 1e-6;
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // reads the file in chunks of about chunkBytes
+    static PointFileReader read(Path file, int chunkBytes) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+
+            // chunk i is [starts[i], starts[i + 1]) and starts on a new line
+            long[] starts = new long[(int) (length / chunkBytes) + 2];
+            int chunks = 0;
+            long start = 0;
+            while (start < length) {
+                starts[chunks++] = start;
+                start = nextLine(channel, start + chunkBytes, length);
+            }
+            starts[chunks] = length;
+
+            Chunk[] parsed = new Chunk[chunks];
+            if (chunks > 0) {
+                ForkJoinPool.commonPool().invoke(
+                        new ParseTask(channel, starts, parsed, 0, chunks));
+            }
+
+            int n = 0;
+            for (Chunk chunk : parsed) {
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                n += chunk.n;
+            }
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            int i = 0;
+            for (Chunk chunk : parsed) {
+                System.arraycopy(chunk.xs, 0, xs, i, chunk.n);
+                System.arraycopy(chunk.ys, 0, ys, i, chunk.n);
+                i += chunk.n;
+            }
+            return new PointFileReader(xs, ys);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // the position just after the first line break at or after position
+    private static long nextLine(FileChannel channel, long position,
+            long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        while (position < length) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return length;
+    }
+
+    // the coordinates in one chunk of the file
+    private static class Chunk {
+        private double[] xs;
+        private double[] ys;
+        private int n;
+        private IOException error;
+
+        // a line of KdTreeGenerator output takes 18 bytes
+        private Chunk(long bytes) {
+            int capacity = (int) Math.min(bytes / 18 + 1, 1 << 24);
+            xs = new double[capacity];
+            ys = new double[capacity];
+        }
+
+        private void add(double x, double y) {
+            if (n == xs.length) {
+                xs = Arrays.copyOf(xs, 2 * n);
+                ys = Arrays.copyOf(ys, 2 * n);
+            }
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+        }
+    }
+
+    // parses chunks [lo, hi), forking halves until there is one left
+    private static class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] starts;
+        private final Chunk[] parsed;
+        private final int lo;
+        private final int hi;
+
+        private ParseTask(FileChannel channel, long[] starts, Chunk[] parsed,
+                int lo, int hi) {
+            this.channel = channel;
+            this.starts = starts;
+            this.parsed = parsed;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = lo + (hi - lo) / 2;
+                invokeAll(new ParseTask(channel, starts, parsed, lo, mid),
+                        new ParseTask(channel, starts, parsed, mid, hi));
+                return;
+            }
+
+            long bytes = starts[lo + 1] - starts[lo];
+            Chunk chunk = new Chunk(bytes);
+            try {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, starts[lo], bytes);
+                parse(buffer, chunk);
+            } catch (IOException e) {
+                chunk.error = e;
+            } catch (NumberFormatException e) {
+                chunk.error = new IOException(e);
+            }
+            parsed[lo] = chunk;
+        }
+    }
+
+    private static void parse(ByteBuffer buffer, Chunk chunk)
+            throws IOException {
+        int end = buffer.limit();
+        int i = 0;
+        double x = 0d;
+        boolean isX = true;
+        while (true) {
+            while (i < end && isSpace(buffer.get(i))) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+
+            int from = i;
+            while (i < end && !isSpace(buffer.get(i))) {
+                i++;
+            }
+            double value = parseDouble(buffer, from, i);
+            if (isX) {
+                x = value;
+            } else {
+                chunk.add(x, value);
+            }
+            isX = !isX;
+        }
+
+        if (!isX) {
+            throw new IOException("odd number of coordinates");
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    // the number in bytes [from, to); exact, like Double.parseDouble
+    private static double parseDouble(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean isNegative = false;
+        if (buffer.get(i) == '-' || buffer.get(i) == '+') {
+            isNegative = buffer.get(i) == '-';
+            i++;
+        }
+
+        // up to 18 significant digits fit in a long
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean isExact = true;
+        boolean hasDigits = false;
+        boolean isFraction = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                hasDigits = true;
+                if (digits < 18) {
+                    mantissa = 10 * mantissa + (b - '0');
+                    if (mantissa > 0) {
+                        digits++;
+                    }
+                    if (isFraction) {
+                        exponent--;
+                    }
+                } else {
+                    isExact = isExact && b == '0';
+                    if (!isFraction) {
+                        exponent++;
+                    }
+                }
+            } else if (b == '.' && !isFraction) {
+                isFraction = true;
+            } else {
+                break;
+            }
+        }
+
+        if (i < to && hasDigits
+                && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean isNegativeExp = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                isNegativeExp = buffer.get(i) == '-';
+                i++;
+            }
+            int exp = 0;
+            int expDigits = 0;
+            for (; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                exp = Math.min(10 * exp + (b - '0'), 100000);
+                expDigits++;
+            }
+            if (expDigits == 0) {
+                return fallback(buffer, from, to);
+            }
+            exponent += isNegativeExp ? -exp : exp;
+        }
+
+        // a mantissa below 2^53 times an exact power of ten is rounded
+        // correctly by a single multiplication or division
+        if (i != to || !hasDigits || !isExact || mantissa >= 1L << 53
+                || exponent < -22 || exponent > 22) {
+            return fallback(buffer, from, to);
+        }
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        return isNegative ? -value : value;
+    }
+
+    private static double fallback(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return Double.parseDouble(new String(bytes,
+                StandardCharsets.US_ASCII));
+    }
+}
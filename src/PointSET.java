@@ -1,5 +1,12 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
 
 import edu.princeton.cs.algs4.In;
 import edu.princeton.cs.algs4.Point2D;
@@ -8,21 +15,76 @@ import edu.princeton.cs.algs4.StdDraw;
 
 public class PointSET {
 
+    // the Hilbert curve runs over a GRID x GRID grid laid over the
+    // bounding box of the packed points
+    private static final int ORDER = 16;
+    private static final int GRID = 1 << ORDER;
+
+    // points on either side of the query's curve position that nearest()
+    // looks at to bound the search
+    private static final int WINDOW = 32;
+
+    // points per task of a parallel full scan
+    private static final int CHUNK = 1 << 16;
+
+    // points inserted since the last compact()
     private TreeSet<Point2D> set;
 
+    // the packed points in Hilbert order, with their keys
+    private double[] xs = new double[0];
+    private double[] ys = new double[0];
+    private long[] keys = new long[0];
+    private int packed;
+
+    // the smallest x-coordinate of the packed points
+    private double xmin;
+
+    // the smallest y-coordinate of the packed points
+    private double ymin;
+
+    // the largest x-coordinate of the packed points
+    private double xmax;
+
+    // the largest y-coordinate of the packed points
+    private double ymax;
+
+    // grid columns per unit of x over the bounding box
+    private double xscale;
+
+    // grid rows per unit of y over the bounding box
+    private double yscale;
+
     // construct an empty set of points
     public PointSET() {
         set = new TreeSet<Point2D>();
     }
 
+    // construct a compact set of the points (x[i], y[i])
+    public PointSET(double[] x, double[] y) {
+        if (x == null || y == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (x.length != y.length) {
+            throw new java.lang.IllegalArgumentException();
+        }
+        for (int i = 0; i < x.length; i++) {
+            if (Double.isNaN(x[i]) || Double.isInfinite(x[i])
+                    || Double.isNaN(y[i]) || Double.isInfinite(y[i])) {
+                throw new java.lang.IllegalArgumentException();
+            }
+        }
+        set = new TreeSet<Point2D>();
+        pack(x, y, x.length);
+    }
+
     // is the set empty?
     public boolean isEmpty() {
-        return set.isEmpty();
+        return packed == 0 && set.isEmpty();
     }
 
     // number of points in the set
     public int size() {
-        return set.size();
+        return packed + set.size();
     }
 
     // add the point to the set (if it is not already in the set)
@@ -30,7 +92,9 @@ public class PointSET {
         if (p == null) {
             throw new java.lang.NullPointerException();
         }
-        set.add(p);
+        if (indexOf(p.x(), p.y()) < 0) {
+            set.add(p);
+        }
     }
 
     // does the set contain point p?
@@ -38,7 +102,26 @@ public class PointSET {
         if (p == null) {
             throw new java.lang.NullPointerException();
         }
-        return set.contains(p);
+        return set.contains(p) || indexOf(p.x(), p.y()) >= 0;
+    }
+
+    // pack every point into primitive arrays sorted by Hilbert key;
+    // later inserts are kept aside until the next compact()
+    public void compact() {
+        if (set.isEmpty()) {
+            return;
+        }
+        int n = size();
+        double[] x = Arrays.copyOf(xs, n);
+        double[] y = Arrays.copyOf(ys, n);
+        int i = packed;
+        for (Point2D p : set) {
+            x[i] = p.x();
+            y[i] = p.y();
+            i++;
+        }
+        set.clear();
+        pack(x, y, n);
     }
 
     // draw all points to standard draw
@@ -46,6 +129,9 @@ public class PointSET {
         StdDraw.show(0);
         StdDraw.setXscale(0, 1);
         StdDraw.setYscale(0, 1);
+        for (int i = 0; i < packed; i++) {
+            StdDraw.point(xs[i], ys[i]);
+        }
         for (Point2D p : set) {
             p.draw();
         }
@@ -64,6 +150,23 @@ public class PointSET {
                 points.add(p);
             }
         }
+        if (packed == 0 || rect.xmin() > xmax || rect.xmax() < xmin
+                || rect.ymin() > ymax || rect.ymax() < ymin) {
+            return points;
+        }
+
+        Intervals intervals = intervals(rect.xmin(), rect.ymin(),
+                rect.xmax(), rect.ymax());
+        for (int j = 0; j < intervals.size; j++) {
+            long hi = intervals.hi[j];
+            for (int i = lowerBound(intervals.lo[j]); i < packed
+                    && keys[i] <= hi; i++) {
+                if (xs[i] >= rect.xmin() && xs[i] <= rect.xmax()
+                        && ys[i] >= rect.ymin() && ys[i] <= rect.ymax()) {
+                    points.add(new Point2D(xs[i], ys[i]));
+                }
+            }
+        }
         return points;
     }
 
@@ -82,15 +185,475 @@ public class PointSET {
                 nearest = p;
             }
         }
-        return nearest;
+        if (packed == 0) {
+            return nearest;
+        }
+
+        // the points next to the query on the curve bound the search
+        double qx = query.x();
+        double qy = query.y();
+        int best = -1;
+        int at = lowerBound(hilbert(gridX(qx), gridY(qy)));
+        for (int i = Math.max(0, at - WINDOW); i < Math.min(packed,
+                at + WINDOW); i++) {
+            double dist = distanceSquared(i, qx, qy);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = i;
+            }
+        }
+
+        double r = Math.nextUp(Math.sqrt(bestDist));
+        if (qx - r <= xmin && qx + r >= xmax && qy - r <= ymin
+                && qy + r >= ymax) {
+            // the circle covers the whole set; scan it all in parallel
+            int i = nearestInParallel(qx, qy);
+            if (distanceSquared(i, qx, qy) < bestDist) {
+                best = i;
+            }
+        } else if (qx - r <= xmax && qx + r >= xmin && qy - r <= ymax
+                && qy + r >= ymin) {
+            Intervals intervals = intervals(qx - r, qy - r, qx + r, qy + r);
+            for (int j = 0; j < intervals.size; j++) {
+                long hi = intervals.hi[j];
+                for (int i = lowerBound(intervals.lo[j]); i < packed
+                        && keys[i] <= hi; i++) {
+                    double dist = distanceSquared(i, qx, qy);
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = i;
+                    }
+                }
+            }
+        }
+        return best < 0 ? nearest : new Point2D(xs[best], ys[best]);
+    }
+
+    // the k points in the set closest to query, nearest first
+    public Iterable<Point2D> nearest(final Point2D query, int k) {
+        if (query == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (k < 1) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        Vector<Point2D> points = new Vector<Point2D>(set);
+        for (int i = 0; i < packed; i++) {
+            points.add(new Point2D(xs[i], ys[i]));
+        }
+        Collections.sort(points, new Comparator<Point2D>() {
+            @Override
+            public int compare(Point2D a, Point2D b) {
+                return Double.compare(query.distanceSquaredTo(a),
+                        query.distanceSquaredTo(b));
+            }
+        });
+        if (points.size() > k) {
+            points.setSize(k);
+        }
+        return points;
+    }
+
+    // all points within distance r of center
+    public Iterable<Point2D> withinRadius(Point2D center, double r) {
+        if (center == null) {
+            throw new java.lang.NullPointerException();
+        }
+        if (!(r >= 0d)) {
+            throw new java.lang.IllegalArgumentException();
+        }
+
+        double r2 = r * r;
+        Vector<Point2D> points = new Vector<Point2D>();
+        for (Point2D p : set) {
+            if (center.distanceSquaredTo(p) <= r2) {
+                points.add(p);
+            }
+        }
+        for (int i = 0; i < packed; i++) {
+            if (distanceSquared(i, center.x(), center.y()) <= r2) {
+                points.add(new Point2D(xs[i], ys[i]));
+            }
+        }
+        return points;
+    }
+
+    // replace the packed points by the n points (x[i], y[i]), without
+    // duplicates, sorted by their Hilbert key
+    private void pack(double[] x, double[] y, int n) {
+        xmin = Double.POSITIVE_INFINITY;
+        ymin = Double.POSITIVE_INFINITY;
+        xmax = Double.NEGATIVE_INFINITY;
+        ymax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            xmin = Math.min(xmin, x[i]);
+            ymin = Math.min(ymin, y[i]);
+            xmax = Math.max(xmax, x[i]);
+            ymax = Math.max(ymax, y[i]);
+        }
+        xscale = xmax > xmin ? GRID / (xmax - xmin) : 0d;
+        yscale = ymax > ymin ? GRID / (ymax - ymin) : 0d;
+
+        // sort the keys with the index of their point in the low bits;
+        // flipping the sign bit sorts the unsigned keys as signed longs
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (hilbert(gridX(x[i]), gridY(y[i])) << 32 | i)
+                    ^ Long.MIN_VALUE;
+        }
+        Arrays.parallelSort(order);
+
+        xs = new double[n];
+        ys = new double[n];
+        keys = new long[n];
+        packed = 0;
+        int group = 0;
+        for (int j = 0; j < n; j++) {
+            long key = (order[j] ^ Long.MIN_VALUE) >>> 32;
+            int i = (int) order[j];
+            // -0.0 is the same point as 0.0, as in Point2D
+            double px = x[i] + 0d;
+            double py = y[i] + 0d;
+            if (packed == 0 || keys[packed - 1] != key) {
+                group = packed;
+            } else if (indexOf(px, py, group, packed) >= 0) {
+                continue;
+            }
+            xs[packed] = px;
+            ys[packed] = py;
+            keys[packed] = key;
+            packed++;
+        }
+        if (packed < n) {
+            xs = Arrays.copyOf(xs, packed);
+            ys = Arrays.copyOf(ys, packed);
+            keys = Arrays.copyOf(keys, packed);
+        }
+    }
+
+    // the index of the packed point (x, y); -1 if there is none
+    private int indexOf(double x, double y) {
+        if (packed == 0 || x < xmin || x > xmax || y < ymin || y > ymax) {
+            return -1;
+        }
+        long key = hilbert(gridX(x), gridY(y));
+        int lo = lowerBound(key);
+        int hi = lo;
+        while (hi < packed && keys[hi] == key) {
+            hi++;
+        }
+        return indexOf(x, y, lo, hi);
+    }
+
+    // the index of the point (x, y) among packed points lo to hi - 1; -1
+    // if there is none
+    private int indexOf(double x, double y, int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            if (xs[i] == x && ys[i] == y) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the index of the first packed point with a key of at least key
+    private int lowerBound(long key) {
+        int lo = 0;
+        int hi = packed;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private double distanceSquared(int i, double x, double y) {
+        double dx = xs[i] - x;
+        double dy = ys[i] - y;
+        return dx * dx + dy * dy;
+    }
+
+    // the index of a packed point nearest to (x, y), scanning chunks of
+    // the points in parallel
+    private int nearestInParallel(final double x, final double y) {
+        final int chunks = (packed + CHUNK - 1) / CHUNK;
+        return IntStream.range(0, chunks).parallel()
+                .map(new IntUnaryOperator() {
+                    @Override
+                    public int applyAsInt(int chunk) {
+                        int best = chunk * CHUNK;
+                        double bestDist = distanceSquared(best, x, y);
+                        int end = Math.min(packed, best + CHUNK);
+                        for (int i = best + 1; i < end; i++) {
+                            double dist = distanceSquared(i, x, y);
+                            if (dist < bestDist) {
+                                bestDist = dist;
+                                best = i;
+                            }
+                        }
+                        return best;
+                    }
+                }).reduce(new IntBinaryOperator() {
+                    @Override
+                    public int applyAsInt(int a, int b) {
+                        return distanceSquared(b, x, y)
+                                < distanceSquared(a, x, y) ? b : a;
+                    }
+                }).getAsInt();
+    }
+
+    // the grid column of x, clamped to the grid
+    private int gridX(double x) {
+        return (int) Math.min(GRID - 1, Math.max(0d, (x - xmin) * xscale));
+    }
+
+    // the grid row of y, clamped to the grid
+    private int gridY(double y) {
+        return (int) Math.min(GRID - 1, Math.max(0d, (y - ymin) * yscale));
+    }
+
+    // the position of grid cell (x, y) along the Hilbert curve
+    private static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = GRID / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = GRID - 1 - x;
+                    y = GRID - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    // the key intervals of the grid cells that cover the rectangle
+    // (x0, y0) - (x1, y1), in increasing order; cells on its boundary
+    // are split down to about 1/16 of its size
+    private Intervals intervals(double x0, double y0, double x1,
+            double y1) {
+        int gx0 = gridX(x0);
+        int gy0 = gridY(y0);
+        int gx1 = gridX(x1);
+        int gy1 = gridY(y1);
+        int extent = Math.max(gx1 - gx0, gy1 - gy0) + 1;
+        int limit = Math.max(1, Integer.highestOneBit(extent) / 16);
+        Intervals intervals = new Intervals();
+        decompose(0, 0, GRID, gx0, gy0, gx1, gy1, limit, intervals);
+        return intervals;
+    }
+
+    // add the key intervals of the part of the s x s cell at (x, y)
+    // that the grid rectangle (gx0, gy0) - (gx1, gy1) covers
+    private static void decompose(int x, int y, int s, int gx0, int gy0,
+            int gx1, int gy1, int limit, Intervals intervals) {
+        if (x > gx1 || x + s - 1 < gx0 || y > gy1 || y + s - 1 < gy0) {
+            return;
+        }
+        long cells = (long) s * s;
+        if (s <= limit || x >= gx0 && x + s - 1 <= gx1 && y >= gy0
+                && y + s - 1 <= gy1) {
+            long lo = hilbert(x, y) & -cells;
+            intervals.add(lo, lo + cells - 1);
+            return;
+        }
+
+        // the four quarters, in the order the curve visits them
+        int h = s / 2;
+        int[] qx = { x, x + h, x, x + h };
+        int[] qy = { y, y, y + h, y + h };
+        long[] lo = new long[4];
+        for (int i = 0; i < 4; i++) {
+            lo[i] = hilbert(qx[i], qy[i]) & -(cells / 4);
+            for (int j = i; j > 0 && lo[j] < lo[j - 1]; j--) {
+                long t = lo[j];
+                lo[j] = lo[j - 1];
+                lo[j - 1] = t;
+                int tx = qx[j];
+                qx[j] = qx[j - 1];
+                qx[j - 1] = tx;
+                int ty = qy[j];
+                qy[j] = qy[j - 1];
+                qy[j - 1] = ty;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            decompose(qx[i], qy[i], h, gx0, gy0, gx1, gy1, limit, intervals);
+        }
+    }
+
+    // a growing list of key intervals, merging adjacent ones
+    private static final class Intervals {
+        private long[] lo = new long[16];
+        private long[] hi = new long[16];
+        private int size;
+
+        private void add(long from, long to) {
+            if (size > 0 && hi[size - 1] + 1 == from) {
+                hi[size - 1] = to;
+                return;
+            }
+            if (size == lo.length) {
+                lo = Arrays.copyOf(lo, 2 * size);
+                hi = Arrays.copyOf(hi, 2 * size);
+            }
+            lo[size] = from;
+            hi[size] = to;
+            size++;
+        }
     }
 
     // unit testing of the methods (optional)
     public static void main(String[] args) {
         System.out.println("Running tests...");
+        testHilbert();
+        testCompact();
+        testCompactDegenerate();
         testCircle();
     }
 
+    private static void testHilbert() {
+        System.out.println("testHilbert");
+
+        // every step along the curve moves to a neighbouring cell
+        int n = 1 << 8;
+        int shift = ORDER - 8;
+        int[] cx = new int[n * n];
+        int[] cy = new int[n * n];
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                long d = hilbert(x << shift, y << shift)
+                        >>> (2 * shift);
+                cx[(int) d] = x;
+                cy[(int) d] = y;
+            }
+        }
+        for (int d = 1; d < n * n; d++) {
+            assert Math.abs(cx[d] - cx[d - 1])
+                    + Math.abs(cy[d] - cy[d - 1]) == 1;
+        }
+        assert hilbert(GRID - 1, 0) == (long) GRID * GRID - 1;
+    }
+
+    private static void testCompact() {
+        System.out.println("testCompact");
+
+        Random random = new Random(22);
+        int n = 8000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        PointSET expected = new PointSET();
+        for (int i = 0; i < n; i++) {
+            // clustered, with duplicates
+            int cluster = random.nextInt(5);
+            x[i] = 0.2d * cluster + 0.05d * random.nextGaussian();
+            y[i] = 0.2d * cluster + 0.05d * random.nextGaussian();
+            if (i % 10 == 1) {
+                x[i] = x[i - 1];
+                y[i] = y[i - 1];
+            }
+            expected.insert(new Point2D(x[i], y[i]));
+        }
+
+        PointSET actual = new PointSET(x, y);
+        assert actual.size() == expected.size();
+        checkSame(expected, actual, random, 500);
+
+        // inserts after packing, before and after compact()
+        for (int i = 0; i < 2000; i++) {
+            Point2D p = new Point2D(2d * random.nextDouble() - 0.5d,
+                    2d * random.nextDouble() - 0.5d);
+            expected.insert(p);
+            actual.insert(p);
+            actual.insert(new Point2D(x[i], y[i]));
+        }
+        assert actual.size() == expected.size();
+        checkSame(expected, actual, random, 200);
+        actual.compact();
+        assert actual.size() == expected.size();
+        checkSame(expected, actual, random, 200);
+    }
+
+    private static void testCompactDegenerate() {
+        System.out.println("testCompactDegenerate");
+
+        Random random = new Random(23);
+        PointSET empty = new PointSET(new double[0], new double[0]);
+        assert empty.isEmpty();
+        assert empty.nearest(new Point2D(0.5d, 0.5d)) == null;
+        assert !empty.range(new RectHV(0, 0, 1, 1)).iterator().hasNext();
+
+        // all on one vertical line, and -0.0 the same as 0.0
+        int n = 1000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        PointSET expected = new PointSET();
+        for (int i = 0; i < n; i++) {
+            x[i] = i % 2 == 0 ? -0d : 0d;
+            y[i] = random.nextInt(300);
+            expected.insert(new Point2D(x[i], y[i]));
+        }
+        PointSET actual = new PointSET(x, y);
+        assert actual.size() == expected.size();
+        assert actual.contains(new Point2D(0d, y[0]));
+        checkSame(expected, actual, random, 100);
+    }
+
+    // do both sets answer every query alike?
+    private static void checkSame(PointSET expected, PointSET actual,
+            Random random, int queries) {
+        for (int q = 0; q < queries; q++) {
+            Point2D p = new Point2D(2d * random.nextDouble() - 0.5d,
+                    2d * random.nextDouble() - 0.5d);
+            assert actual.contains(p) == expected.contains(p);
+            Point2D near = expected.nearest(p);
+            assert actual.contains(near);
+            assert p.distanceSquaredTo(actual.nearest(p))
+                    == p.distanceSquaredTo(near);
+
+            double x0 = 1.5d * random.nextDouble() - 0.25d;
+            double y0 = 1.5d * random.nextDouble() - 0.25d;
+            double size = q % 2 == 0 ? 0.05d : 0.5d;
+            RectHV rect = new RectHV(x0, y0, x0 + size * random.nextDouble(),
+                    y0 + size * random.nextDouble());
+            assert sorted(actual.range(rect))
+                    .equals(sorted(expected.range(rect)));
+            assert sorted(actual.withinRadius(p, 0.1d))
+                    .equals(sorted(expected.withinRadius(p, 0.1d)));
+
+            double kth = 0d;
+            for (Point2D r : expected.nearest(p, 5)) {
+                kth = p.distanceSquaredTo(r);
+            }
+            int k = 0;
+            for (Point2D r : actual.nearest(p, 5)) {
+                assert p.distanceSquaredTo(r) <= kth;
+                k++;
+            }
+            assert k == Math.min(5, expected.size());
+        }
+        assert sorted(actual.range(new RectHV(-1e9, -1e9, 1e9, 1e9)))
+                .size() == expected.size();
+    }
+
+    private static TreeSet<Point2D> sorted(Iterable<Point2D> points) {
+        TreeSet<Point2D> set = new TreeSet<Point2D>();
+        for (Point2D p : points) {
+            assert set.add(p);
+        }
+        return set;
+    }
+
     private static void testCircle() {
         System.out.println("testCircle");
 
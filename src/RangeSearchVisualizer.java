@@ -1,7 +1,7 @@
 /******************************************************************************
  *  Compilation:  javac RangeSearchVisualizer.java
  *  Execution:    java RangeSearchVisualizer input.txt
- *  Dependencies: PointSET.java KdTree.java
+ *  Dependencies: PointSET.java KdTree.java PointFileReader.java
  *
  *  Read points from a file (specified as a command-line arugment) and
  *  draw to standard draw. Also draw all of the points in the rectangle
@@ -12,30 +12,28 @@
  *
  ******************************************************************************/
 
-import edu.princeton.cs.algs4.In;
+import java.io.IOException;
+
 import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.RectHV;
 import edu.princeton.cs.algs4.StdDraw;
 
 public class RangeSearchVisualizer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
 
         String filename = args[0];
-        In in = new In(filename);
+        PointFileReader in = PointFileReader.read(filename);
 
         StdDraw.show(0);
 
         // initialize the data structures with N points from standard input
         PointSET brute = new PointSET();
-        KdTree kdtree = new KdTree();
-        while (!in.isEmpty()) {
-            double x = in.readDouble();
-            double y = in.readDouble();
-            Point2D p = new Point2D(x, y);
-            kdtree.insert(p);
+        Point2D[] points = in.points();
+        for (Point2D p : points) {
             brute.insert(p);
         }
+        KdTree kdtree = new KdTree(points);
 
         double x0 = 0.0, y0 = 0.0;      // initial endpoint of rectangle
         double x1 = 0.0, y1 = 0.0;      // current location of mouse